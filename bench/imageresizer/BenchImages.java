@@ -0,0 +1,116 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Source images for the benchmarks.
+ * 
+ * "frog" and "mallard" are the jpegs bundled next to the sources. The
+ * "synthetic-WxH" images are generated so any size can be measured without
+ * shipping big files: gradients plus noise, which compress and scale about
+ * like a photo.
+ * 
+ * @author gtanner
+ */
+final class BenchImages {
+    
+    private BenchImages() {
+    }
+    
+    /**
+     * @param name frog, mallard or synthetic-WxH
+     * @return the jpeg bytes of the image
+     */
+    static byte[] jpegBytes(String name) throws IOException {
+        if(name.startsWith("synthetic-")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(synthetic(name), "jpg", out);
+            return out.toByteArray();
+        }
+        try(InputStream in = BenchImages.class.getResourceAsStream(name + ".jpg")) {
+            if(in == null) {
+                throw new IOException("Missing resource " + name + ".jpg, is src/ on the classpath?");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            for(int n; (n = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+    
+    /**
+     * @param name frog, mallard or synthetic-WxH
+     * @param type a BufferedImage.TYPE_ constant
+     * @return the decoded image converted to type
+     */
+    static BufferedImage image(String name, int type) throws IOException {
+        BufferedImage decoded = name.startsWith("synthetic-")
+                ? synthetic(name)
+                : ImageIO.read(BenchImages.class.getResource(name + ".jpg"));
+        return convert(decoded, type);
+    }
+    
+    static BufferedImage convert(BufferedImage image, int type) {
+        if(image.getType() == type) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+    
+    /**
+     * @param name TYPE_3BYTE_BGR, TYPE_INT_RGB...
+     * @return the value of the BufferedImage constant
+     */
+    static int type(String name) {
+        try {
+            return BufferedImage.class.getField(name).getInt(null);
+        } catch(NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Unknown image type " + name, e);
+        }
+    }
+    
+    private static BufferedImage synthetic(String name) {
+        String[] size = name.substring("synthetic-".length()).split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(20, 60, 140), width, height, new Color(230, 200, 90)));
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        
+        // fixed seed so every run measures the same pixels
+        Random random = new Random(42);
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x += 1 + random.nextInt(4)) {
+                int rgb = image.getRGB(x, y);
+                int noise = random.nextInt(33) - 16;
+                int r = Math.max(0, Math.min(255, ((rgb >> 16) & 0xFF) + noise));
+                int gr = Math.max(0, Math.min(255, ((rgb >> 8) & 0xFF) + noise));
+                int b = Math.max(0, Math.min(255, (rgb & 0xFF) + noise));
+                image.setRGB(x, y, r << 16 | gr << 8 | b);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so each result comes with its
+ * allocation rate (gc.alloc.rate.norm is bytes per operation).
+ * 
+ * Pass a regular expression to run only some of them, for example
+ *  java ... imageresizer.Benchmarks ScaleBenchmark.resampleLanczos
+ * 
+ * @author gtanner
+ */
+public class Benchmarks {
+    
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "imageresizer\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ReadImage decode paths, plus the subsampled reader at a few target
+ * widths, with the scaled jpeg decoder and with ImageIO alone. Sources are copied to a temp file first so the URL path reads a
+ * file: URL instead of measuring the network.
+ * 
+ * @author gtanner
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    
+    @Param({"frog", "mallard", "synthetic-6000x4000"})
+    public String image;
+    
+    @Param({"235", "800"})
+    public int targetWidth;
+    
+    private File file;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("bench-" + image, ".jpg");
+        Files.write(file.toPath(), BenchImages.jpegBytes(image));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+    
+    @Benchmark
+    public DecodedImage readFromFile() throws IOException {
+        return ReadImage.decodeFile(file);
+    }
+    
+    @Benchmark
+    public DecodedImage readFromStream() throws IOException {
+        return ReadImage.decodeStream(file.getPath());
+    }
+    
+    @Benchmark
+    public DecodedImage readFromUrl() throws IOException {
+        return ReadImage.decodeUrl(file.toURI().toString());
+    }
+    
+    @Benchmark
+    public DecodedImage readSubsampled() throws IOException {
+        return SubsampledReader.readToFit(file, targetWidth, Integer.MAX_VALUE);
+    }
+    
+    // What readSubsampled did before ScaledJpegDecoder
+    @Benchmark
+    public BufferedImage readSubsampledImageIO() throws IOException {
+        try(ImageInputStream iis = MappedImageInputStream.open(file)) {
+            ImageReader reader = ImageIO.getImageReaders(iis).next();
+            try {
+                reader.setInput(iis, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                Dimension target = SubsampledReader.fitInside(width, height, targetWidth, Integer.MAX_VALUE);
+                int factor = SubsampledReader.subsampling(width, height, target.width, target.height);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
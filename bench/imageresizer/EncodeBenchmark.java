@@ -0,0 +1,70 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Jpeg encoding at the default quality and under a size limit.
+ * 
+ * @author gtanner
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class EncodeBenchmark {
+    
+    @Param({"frog", "mallard", "synthetic-1024x768"})
+    public String image;
+    
+    @Param({"TYPE_3BYTE_BGR", "TYPE_INT_RGB"})
+    public String type;
+    
+    @Param({"102400", "512000"})
+    public long maxBytes;
+    
+    private BufferedImage source;
+    private JpegSizeEncoder encoder;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = BenchImages.image(image, BenchImages.type(type));
+        encoder = new JpegSizeEncoder();
+    }
+    
+    @Benchmark
+    public int imageIOWrite() throws IOException {
+        out.reset();
+        ImageIO.write(source, "jpg", out);
+        return out.size();
+    }
+    
+    @Benchmark
+    public int targetSize() throws IOException {
+        encoder.encode(source, maxBytes);
+        return encoder.size();
+    }
+}
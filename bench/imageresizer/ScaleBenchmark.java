@@ -0,0 +1,107 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Every scaling path in the package on the same inputs.
+ * 
+ * @author gtanner
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ScaleBenchmark {
+    
+    @Param({"frog", "mallard", "synthetic-1024x768", "synthetic-6000x4000"})
+    public String image;
+    
+    @Param({"0.06", "0.25", "0.5", "2.0"})
+    public double scale;
+    
+    @Param({"TYPE_3BYTE_BGR", "TYPE_INT_RGB", "TYPE_INT_ARGB"})
+    public String type;
+    
+    private BufferedImage source;
+    private int imageType;
+    private int width;
+    private int height;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        imageType = BenchImages.type(type);
+        source = BenchImages.image(image, imageType);
+        width = Math.max(1, (int)(source.getWidth() * scale));
+        height = Math.max(1, (int)(source.getHeight() * scale));
+    }
+    
+    @Benchmark
+    public BufferedImage getScaledImage() {
+        return ImageScaleByPercent.getScaledImage(source, width, height);
+    }
+    
+    @Benchmark
+    public BufferedImage getScaledImageByPercent() {
+        return ImageScaleByPercent.getScaledImageByPercent(source, scale);
+    }
+    
+    @Benchmark
+    public BufferedImage hintsResizeImage() {
+        return ImageScaleByPercentHints.resizeImage(source, imageType, scale);
+    }
+    
+    // Fixed 640x512 output, the scale parameter doesn't apply
+    @Benchmark
+    public BufferedImage hintsResizeImageWithHint() {
+        return ImageScaleByPercentHints.resizeImageWithHint(source, imageType);
+    }
+    
+    @Benchmark
+    public BufferedImage resampleBox() {
+        return Resampler.resize(source, width, height, ResampleFilter.BOX);
+    }
+    
+    @Benchmark
+    public BufferedImage resampleBilinear() {
+        return Resampler.resize(source, width, height, ResampleFilter.BILINEAR);
+    }
+    
+    @Benchmark
+    public BufferedImage resampleMitchell() {
+        return Resampler.resize(source, width, height, ResampleFilter.MITCHELL);
+    }
+    
+    @Benchmark
+    public BufferedImage resampleLanczos() {
+        return Resampler.resize(source, width, height, ResampleFilter.LANCZOS3);
+    }
+    
+    // Box reduction first, see Resampler.resizeReduced
+    @Benchmark
+    public BufferedImage resampleLanczosReduced() {
+        BufferedImage resized = new BufferedImage(width, height, imageType);
+        Resampler.resizeReduced(source, resized, ResampleFilter.LANCZOS3);
+        return resized;
+    }
+}
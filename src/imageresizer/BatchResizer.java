@@ -0,0 +1,205 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import imageresizer.BatchSummary.Stage;
+import imageresizer.ResizeMetrics.Operation;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resizes a list of files concurrently on a bounded fork-join pool.
+ * 
+ * Before starting, every file's headers are read with ImageProbe, which
+ * takes microseconds where a decode takes hundreds of milliseconds. Files
+ * are submitted by the memory their decode needs, largest first, so a big
+ * image picked up at the end of the batch can't leave one worker running
+ * long after the rest are idle. Jpegs that are already the rendition's
+ * size are copied instead of resized. Each other task decodes, scales and
+ * encodes one file, once its estimated peak memory fits in the shared
+ * MemoryBudget, so a run of huge images can't exhaust the heap.
+ * 
+ * @author gtanner
+ */
+public class BatchResizer {
+    
+    private final ImageResizer resizer;
+    private final int concurrency;
+    
+    /**
+     * @param resizer does the work for each file
+     * @param concurrency number of worker threads
+     */
+    public BatchResizer(ImageResizer resizer, int concurrency) {
+        if(concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1: " + concurrency);
+        }
+        this.resizer = resizer;
+        this.concurrency = concurrency;
+    }
+    
+    /**
+     * Resizes every file into the output folder, keeping the file names.
+     * 
+     * @param files source images
+     * @param outputDir folder for the resized jpegs
+     * @param maxWidth
+     * @return totals for the batch
+     */
+    public BatchSummary run(List<Path> files, Path outputDir, int maxWidth) throws IOException {
+        return run(files, outputDir, maxWidth, p -> { });
+    }
+    
+    /**
+     * Resizes every file into the output folder, keeping the file names.
+     * 
+     * @param files source images
+     * @param outputDir folder for the resized jpegs
+     * @param maxWidth
+     * @param resized called from the worker thread after each file is written
+     * @return totals for the batch
+     */
+    public BatchSummary run(List<Path> files, Path outputDir, int maxWidth, Consumer<Path> resized) throws IOException {
+        return run(files, p -> outputDir.resolve(ImageResizer.outputName(p, resizer.getFormat())),
+                resizer.widthSpec(maxWidth), resized);
+    }
+    
+    /**
+     * Resizes every file to a rendition. The summary also has the time spent
+     * in each stage and the time taken for each image.
+     * 
+     * @param files source images
+     * @param output gives the file to write for each source
+     * @param spec size of the outputs
+     * @param resized called from the worker thread after each file is written
+     * @return totals for the batch
+     */
+    public BatchSummary run(List<Path> files, Function<Path, Path> output, RenditionSpec spec,
+            Consumer<Path> resized) throws IOException {
+        BatchSummary summary = new BatchSummary();
+        List<SizedPath> queue = plan(files, spec);
+        MemoryBudget budget = MemoryBudget.shared();
+        
+        summary.start();
+        ForkJoinPool pool = new ForkJoinPool(concurrency);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(queue.size());
+            for(SizedPath sp : queue) {
+                tasks.add(pool.submit(() -> resizeOne(sp, output.apply(sp.path), spec, budget, summary, resized)));
+            }
+            for(ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+            summary.finish();
+        }
+        
+        return summary;
+    }
+    
+    private void resizeOne(SizedPath sp, Path outputPath, RenditionSpec spec, MemoryBudget budget,
+            BatchSummary summary, Consumer<Path> resized) {
+        File output = outputPath.toFile();
+        try {
+            long start = System.nanoTime();
+            if(copyIfSmall(sp, outputPath, spec, summary)) {
+                summary.addImage(sp.size, sp.size, System.nanoTime() - start);
+            } else {
+                budget.acquire(sp.memory);
+                try {
+                    resizer.resizeImage(sp.path.toFile(), output, spec, summary);
+                } finally {
+                    budget.release(sp.memory);
+                }
+                summary.addImage(sp.size, output.length(), System.nanoTime() - start);
+            }
+            resized.accept(sp.path);
+        } catch(IOException | RuntimeException e) {
+            summary.addFailure();
+            Logger.getLogger(BatchResizer.class.getName()).log(Level.WARNING, "Could not resize " + sp.path, e);
+        } catch(InterruptedException e) {
+            summary.addFailure();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Copies the source as the output if it is already the rendition
+    boolean copyIfSmall(SizedPath sp, Path outputPath, RenditionSpec spec, BatchSummary summary) throws IOException {
+        if(sp.probe == null || !resizer.canCopy(sp.probe, spec)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            Files.copy(sp.path, outputPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException | RuntimeException e) {
+            ResizeMetrics.shared().recordError(Operation.WRITE, "jpeg", e);
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        summary.addTime(Stage.IO, nanos);
+        ResizeMetrics.shared().record(Operation.WRITE, "jpeg", nanos, sp.size, 0);
+        summary.addCopied();
+        return true;
+    }
+    
+    /**
+     * Probes every file and sorts them by the memory their resize needs,
+     * biggest first. Files the probe can't read count as their file size;
+     * they fail with a proper error when decoded.
+     * 
+     * @param files
+     * @param spec the rendition each file is resized to
+     * @return the files in the order to resize them
+     */
+    List<SizedPath> plan(List<Path> files, RenditionSpec spec) throws IOException {
+        List<SizedPath> planned = new ArrayList<>(files.size());
+        for(Path p : files) {
+            // checked here so a missing file fails the batch, as before
+            planned.add(new SizedPath(p, Files.size(p)));
+        }
+        // reading headers is mostly waiting on the disk
+        planned.parallelStream().forEach(sp -> sp.probe(resizer, spec));
+        Collections.sort(planned, (a, b) -> a.memory != b.memory
+                ? Long.compare(b.memory, a.memory) : Long.compare(b.size, a.size));
+        return planned;
+    }
+    
+    static final class SizedPath {
+        final Path path;
+        final long size;
+        // null if the headers couldn't be read
+        ImageProbe probe;
+        // estimated peak heap bytes of the resize, see ImageResizer.peakBytes()
+        long memory;
+        
+        SizedPath(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+        
+        void probe(ImageResizer resizer, RenditionSpec spec) {
+            try {
+                probe = ImageProbe.probe(path.toFile());
+                memory = resizer.peakBytes(probe, spec);
+            } catch(IOException | RuntimeException e) {
+                // nothing to go on, the encoded size is the least it takes
+                probe = null;
+                memory = size;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals for one batch of resizes.
+ * 
+ * Workers add to the counters concurrently; the throughput figures are
+ * computed from the wall clock time between start() and finish(). Time
+ * spent in each stage is summed over all workers, so it can add up to more
+ * than the wall clock time.
+ * 
+ * @author gtanner
+ */
+public class BatchSummary {
+    
+    /** Parts of a resize that are timed separately, see addTime(). */
+    public enum Stage {
+        DECODE, RESAMPLE, ENCODE, IO
+    }
+    
+    private final LongAdder images = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder copied = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicLong startNanos = new AtomicLong();
+    private final AtomicLong endNanos = new AtomicLong();
+    private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+    
+    // wall clock time of each image, for the percentiles
+    private long[] latencies = new long[64];
+    private int latencyCount;
+    
+    public BatchSummary() {
+        for(int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new LongAdder();
+        }
+    }
+    
+    public void start() {
+        startNanos.set(System.nanoTime());
+    }
+    
+    public void finish() {
+        endNanos.set(System.nanoTime());
+    }
+    
+    /**
+     * Records one successfully resized image.
+     * 
+     * @param inputBytes size of the source file
+     * @param outputBytes size of the written file
+     */
+    public void addImage(long inputBytes, long outputBytes) {
+        images.increment();
+        bytesIn.add(inputBytes);
+        bytesOut.add(outputBytes);
+    }
+    
+    /**
+     * Records one successfully resized image.
+     * 
+     * @param inputBytes size of the source file
+     * @param outputBytes size of the written file
+     * @param nanos time taken for the image, from start to written
+     */
+    public void addImage(long inputBytes, long outputBytes, long nanos) {
+        addImage(inputBytes, outputBytes);
+        synchronized(this) {
+            if(latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+    }
+    
+    /**
+     * @param stage
+     * @param nanos time spent in the stage for one image
+     */
+    public void addTime(Stage stage, long nanos) {
+        stageNanos[stage.ordinal()].add(nanos);
+    }
+    
+    /**
+     * @param stage
+     * @return nanoseconds spent in the stage, summed over all workers
+     */
+    public long getNanos(Stage stage) {
+        return stageNanos[stage.ordinal()].sum();
+    }
+    
+    /**
+     * Latency of the images added with their time, nearest rank.
+     * 
+     * @param percentile 50 for the median
+     * @return nanoseconds, 0 if no image was timed
+     */
+    public synchronized long latencyPercentile(double percentile) {
+        if(latencyCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int rank = (int)Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+    }
+    
+    public void addFailure() {
+        failures.increment();
+    }
+    
+    // Already up to date, see ResizeManifest
+    public void addSkipped(long count) {
+        skipped.add(count);
+    }
+    
+    public long getSkipped() {
+        return skipped.sum();
+    }
+    
+    // Already the rendition's size, copied rather than resized. Also
+    // counted by addImage().
+    public void addCopied() {
+        copied.increment();
+    }
+    
+    public long getCopied() {
+        return copied.sum();
+    }
+    
+    public long getImages() {
+        return images.sum();
+    }
+    
+    public long getFailures() {
+        return failures.sum();
+    }
+    
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+    
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+    
+    /**
+     * @return elapsed seconds, up to now if the batch is still running
+     */
+    public double getSeconds() {
+        long end = endNanos.get() == 0 ? System.nanoTime() : endNanos.get();
+        return (end - startNanos.get()) / 1e9;
+    }
+    
+    public double imagesPerSecond() {
+        double seconds = getSeconds();
+        return seconds > 0 ? getImages() / seconds : 0;
+    }
+    
+    // Throughput measured on the source bytes read
+    public double megabytesPerSecond() {
+        double seconds = getSeconds();
+        return seconds > 0 ? getBytesIn() / (1024.0 * 1024.0) / seconds : 0;
+    }
+    
+    /**
+     * @return time in each stage and the p50/p99 latency per image
+     */
+    public String stageReport() {
+        long total = 0;
+        for(Stage stage : Stage.values()) {
+            total += getNanos(stage);
+        }
+        StringBuilder sb = new StringBuilder();
+        for(Stage stage : Stage.values()) {
+            long nanos = getNanos(stage);
+            sb.append(String.format("%s %.2fs (%.0f%%), ", stage.name().toLowerCase(), nanos / 1e9,
+                    total > 0 ? nanos * 100.0 / total : 0));
+        }
+        sb.append(String.format("per image p50 %.1fms, p99 %.1fms",
+                latencyPercentile(50) / 1e6, latencyPercentile(99) / 1e6));
+        return sb.toString();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d images (%d failed, %d up to date, %d copied) in %.2fs: %.1f images/s, %.1f MB/s, %dKB in, %dKB out",
+                getImages(), getFailures(), getSkipped(), getCopied(), getSeconds(), imagesPerSecond(),
+                megabytesPerSecond(), getBytesIn() / 1024, getBytesOut() / 1024);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Shrinks an image by whole factors, each output pixel the average of a
+ * block of source pixels.
+ * 
+ * This is the cheap first step of Resampler.resizeReduced(): every source
+ * pixel is read once and added into a row of int sums, with no weights and
+ * no floating point, so it runs at about memory speed whatever the factor.
+ * Blocks at the right and bottom edges are cut short and average only the
+ * pixels they have.
+ * 
+ * Jpeg style images (TYPE_3BYTE_BGR, TYPE_BYTE_GRAY) are averaged byte by
+ * byte into the same type. Anything else goes through 0xAARRGGBB rows into
+ * TYPE_INT_RGB, or TYPE_INT_ARGB_PRE when there is alpha so transparent
+ * pixels don't bleed their color. The reduced image and the sums come from
+ * the ImagePool.
+ * 
+ * @author gtanner
+ */
+final class BoxReducer {
+    
+    private BoxReducer() {
+    }
+    
+    /**
+     * @param src
+     * @param fx columns per block
+     * @param fy rows per block
+     * @return the reduced image, from the ImagePool. Release it when done.
+     */
+    static BufferedImage reduce(BufferedImage src, int fx, int fy) {
+        if(fx < 1 || fy < 1) {
+            throw new IllegalArgumentException("Bad factor " + fx + "x" + fy);
+        }
+        PixelLayout in = PixelLayout.of(Resampler.toSupported(src));
+        int width = (in.width + fx - 1) / fx;
+        int height = (in.height + fy - 1) / fy;
+        
+        int type = src.getType();
+        boolean bytes = type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_BYTE_GRAY;
+        if(!bytes) {
+            type = in.alpha ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB;
+        }
+        BufferedImage reduced = ImagePool.shared().acquire(type, width, height);
+        PixelLayout out = PixelLayout.of(reduced);
+        if(bytes) {
+            reduceBytes(in, out, fx, fy);
+        } else {
+            reduceInts(in, out, fx, fy);
+        }
+        return reduced;
+    }
+    
+    // Same byte layout in and out, each byte of a pixel averaged on its own
+    private static void reduceBytes(PixelLayout in, PixelLayout out, int fx, int fy) {
+        int stride = in.pixelStride;
+        int full = in.width / fx;
+        ImagePool pool = ImagePool.shared();
+        int[] sums = pool.acquireInts(out.width * stride);
+        try {
+            for(int by = 0; by < out.height; by++) {
+                int y0 = by * fy;
+                int rows = Math.min(fy, in.height - y0);
+                Arrays.fill(sums, 0, out.width * stride, 0);
+                for(int y = y0; y < y0 + rows; y++) {
+                    int i = in.offset + y * in.scanline;
+                    int s = 0;
+                    for(int bx = 0; bx < full; bx++, s += stride) {
+                        for(int k = 0; k < fx; k++) {
+                            for(int c = 0; c < stride; c++) {
+                                sums[s + c] += in.bytes[i++] & 0xFF;
+                            }
+                        }
+                    }
+                    // the short block at the right edge
+                    for(int x = full * fx; x < in.width; x++) {
+                        for(int c = 0; c < stride; c++) {
+                            sums[s + c] += in.bytes[i++] & 0xFF;
+                        }
+                    }
+                }
+                
+                int o = out.offset + by * out.scanline;
+                for(int bx = 0, s = 0; bx < out.width; bx++) {
+                    int n = rows * Math.min(fx, in.width - bx * fx);
+                    int half = n >> 1;
+                    for(int c = 0; c < stride; c++, s++) {
+                        out.bytes[o + s] = (byte)((sums[s] + half) / n);
+                    }
+                }
+            }
+        } finally {
+            pool.releaseInts(sums);
+        }
+    }
+    
+    // 0xAARRGGBB rows, premultiplied, into TYPE_INT_RGB or TYPE_INT_ARGB_PRE
+    private static void reduceInts(PixelLayout in, PixelLayout out, int fx, int fy) {
+        boolean premultiply = in.alpha && !in.premultiplied;
+        ImagePool pool = ImagePool.shared();
+        int[] sums = pool.acquireInts(out.width * 4);
+        int[] argb = in.isArgbInts() ? null : pool.acquireInts(in.width);
+        try {
+            for(int by = 0; by < out.height; by++) {
+                int y0 = by * fy;
+                int rows = Math.min(fy, in.height - y0);
+                Arrays.fill(sums, 0, out.width * 4, 0);
+                for(int y = y0; y < y0 + rows; y++) {
+                    int[] px = in.ints;
+                    int i = in.offset + y * in.scanline;
+                    if(argb != null) {
+                        in.readRow(y, argb);
+                        px = argb;
+                        i = 0;
+                    }
+                    for(int x = 0, s = 0, k = 0; x < in.width; x++) {
+                        int p = px[i + x];
+                        int a = in.alpha ? p >>> 24 : 0xFF;
+                        int r = (p >> 16) & 0xFF;
+                        int g = (p >> 8) & 0xFF;
+                        int b = p & 0xFF;
+                        if(premultiply) {
+                            r = Resampler.premultiply(r, a);
+                            g = Resampler.premultiply(g, a);
+                            b = Resampler.premultiply(b, a);
+                        }
+                        sums[s] += a;
+                        sums[s + 1] += r;
+                        sums[s + 2] += g;
+                        sums[s + 3] += b;
+                        if(++k == fx) {
+                            k = 0;
+                            s += 4;
+                        }
+                    }
+                }
+                
+                int o = out.offset + by * out.scanline;
+                for(int bx = 0, s = 0; bx < out.width; bx++, s += 4) {
+                    int n = rows * Math.min(fx, in.width - bx * fx);
+                    int half = n >> 1;
+                    out.ints[o + bx] = (sums[s] + half) / n << 24 | (sums[s + 1] + half) / n << 16
+                            | (sums[s + 2] + half) / n << 8 | (sums[s + 3] + half) / n;
+                }
+            }
+        } finally {
+            pool.releaseInts(sums);
+            pool.releaseInts(argb);
+        }
+    }
+}
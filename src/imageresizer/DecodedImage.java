@@ -0,0 +1,43 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * An image as SubsampledReader decoded it, still the way up it is stored,
+ * with the orientation that turns it upright. Pass the orientation to the
+ * Resampler methods that take one, which turn it while scaling.
+ * 
+ * @author gtanner
+ */
+public final class DecodedImage {
+    
+    private final BufferedImage image;
+    private final Orientation orientation;
+    private final boolean thumbnail;
+    
+    DecodedImage(BufferedImage image, Orientation orientation, boolean thumbnail) {
+        this.image = image;
+        this.orientation = orientation;
+        this.thumbnail = thumbnail;
+    }
+    
+    public BufferedImage getImage() {
+        return image;
+    }
+    
+    public Orientation getOrientation() {
+        return orientation;
+    }
+    
+    /**
+     * True when this is the EXIF thumbnail and the main image wasn't decoded.
+     */
+    public boolean isThumbnail() {
+        return thumbnail;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import org.w3c.dom.Node;
+
+/**
+ * What the resizer uses from a jpeg's EXIF segment: the orientation and
+ * the embedded thumbnail.
+ * 
+ * The JDK jpeg reader doesn't interpret EXIF, it keeps each APP1 segment
+ * as an "unknown" node of its native metadata tree with the raw bytes as
+ * the user object. The first one that starts "Exif\0\0" is a TIFF
+ * structure: IFD0 holds the Orientation tag (0x0112) and the IFD after it,
+ * IFD1, points at a small jpeg, usually 160x120, with JPEGInterchangeFormat
+ * (0x0201) and JPEGInterchangeFormatLength (0x0202). The thumbnail is
+ * stored the same way up as the main image.
+ * 
+ * Damaged or cut short segments give whatever was read before the damage,
+ * never an exception.
+ * 
+ * @author gtanner
+ */
+public final class ExifMetadata {
+    
+    private static final Logger LOG = Logger.getLogger(ExifMetadata.class.getName());
+    
+    /** No EXIF data: upright and no thumbnail. */
+    public static final ExifMetadata NONE = new ExifMetadata(Orientation.NORMAL, null, 0, 0);
+    
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+    private static final int APP1 = 0xE1;
+    
+    private final Orientation orientation;
+    // a whole jpeg file, or null
+    private final byte[] thumbnail;
+    private final int thumbnailWidth;
+    private final int thumbnailHeight;
+    
+    private ExifMetadata(Orientation orientation, byte[] thumbnail, int thumbnailWidth, int thumbnailHeight) {
+        this.orientation = orientation;
+        this.thumbnail = thumbnail;
+        this.thumbnailWidth = thumbnailWidth;
+        this.thumbnailHeight = thumbnailHeight;
+    }
+    
+    /**
+     * @param reader with its input set
+     * @return the EXIF data of the first image, NONE if there isn't any or
+     *         the reader isn't the JDK jpeg reader
+     */
+    public static ExifMetadata read(ImageReader reader) {
+        try {
+            // other readers would parse their metadata for nothing
+            if(!"jpeg".equalsIgnoreCase(reader.getFormatName())) {
+                return NONE;
+            }
+            return of(reader.getImageMetadata(0));
+        } catch(IOException | RuntimeException e) {
+            LOG.log(Level.FINE, "Unreadable image metadata", e);
+            return NONE;
+        }
+    }
+    
+    /**
+     * @param metadata jpeg image metadata, may be null
+     * @return the EXIF data it holds, NONE if there isn't any
+     */
+    public static ExifMetadata of(IIOMetadata metadata) {
+        if(metadata == null || !JPEG_METADATA.equals(metadata.getNativeMetadataFormatName())) {
+            return NONE;
+        }
+        Node root = metadata.getAsTree(JPEG_METADATA);
+        for(Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if(!"markerSequence".equals(n.getNodeName())) {
+                continue;
+            }
+            for(Node m = n.getFirstChild(); m != null; m = m.getNextSibling()) {
+                if("unknown".equals(m.getNodeName()) && m instanceof IIOMetadataNode
+                        && String.valueOf(APP1).equals(((IIOMetadataNode)m).getAttribute("MarkerTag"))) {
+                    Object data = ((IIOMetadataNode)m).getUserObject();
+                    ExifMetadata exif = data instanceof byte[] ? parse((byte[])data) : null;
+                    if(exif != null) {
+                        return exif;
+                    }
+                }
+            }
+        }
+        return NONE;
+    }
+    
+    /**
+     * @param segment APP1 segment contents, after the length
+     * @return its EXIF data, or null if it isn't an Exif segment
+     */
+    static ExifMetadata parse(byte[] segment) {
+        if(segment.length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i'
+                || segment[3] != 'f' || segment[4] != 0 || segment[5] != 0) {
+            // maybe XMP
+            return null;
+        }
+        // offsets are from the start of the TIFF header
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 6, segment.length - 6).slice();
+        tiff.order(tiff.getShort(0) == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        
+        Orientation orientation = Orientation.NORMAL;
+        byte[] thumbnail = null;
+        try {
+            if(tiff.getShort(2) != 42) {
+                return NONE;
+            }
+            int ifd0 = tiff.getInt(4);
+            int entries = tiff.getShort(ifd0) & 0xFFFF;
+            for(int i = 0; i < entries; i++) {
+                int e = ifd0 + 2 + i * 12;
+                // a SHORT value is at the start of the 4 byte value field
+                if(tiff.getShort(e) == 0x0112 && tiff.getShort(e + 2) == 3) {
+                    orientation = Orientation.fromExif(tiff.getShort(e + 8));
+                }
+            }
+            
+            int ifd1 = tiff.getInt(ifd0 + 2 + entries * 12);
+            if(ifd1 > 0) {
+                int start = -1;
+                int length = 0;
+                entries = tiff.getShort(ifd1) & 0xFFFF;
+                for(int i = 0; i < entries; i++) {
+                    int e = ifd1 + 2 + i * 12;
+                    int tag = tiff.getShort(e) & 0xFFFF;
+                    if(tag == 0x0201) {
+                        start = tiff.getInt(e + 8);
+                    } else if(tag == 0x0202) {
+                        length = tiff.getInt(e + 8);
+                    }
+                }
+                if(start > 0 && length > 0 && length <= tiff.limit() - start) {
+                    thumbnail = Arrays.copyOfRange(segment, 6 + start, 6 + start + length);
+                }
+            }
+        } catch(IndexOutOfBoundsException e) {
+            // cut short, keep what was read
+        }
+        
+        int[] size = thumbnail != null ? frameSize(thumbnail) : null;
+        if(size == null) {
+            return new ExifMetadata(orientation, null, 0, 0);
+        }
+        return new ExifMetadata(orientation, thumbnail, size[0], size[1]);
+    }
+    
+    // Width and height from a jpeg's frame header, null if there is none
+    private static int[] frameSize(byte[] jpeg) {
+        if(jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        int i = 2;
+        while(i + 9 < jpeg.length && (jpeg[i] & 0xFF) == 0xFF) {
+            int marker = jpeg[i + 1] & 0xFF;
+            if(marker == 0xFF) {
+                // fill byte
+                i++;
+                continue;
+            }
+            // any SOF but DHT, JPG and DAC
+            if(marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int height = (jpeg[i + 5] & 0xFF) << 8 | (jpeg[i + 6] & 0xFF);
+                int width = (jpeg[i + 7] & 0xFF) << 8 | (jpeg[i + 8] & 0xFF);
+                return width > 0 && height > 0 ? new int[] { width, height } : null;
+            }
+            if(marker == 0xDA || marker == 0xD9) {
+                return null;
+            }
+            i += 2 + ((jpeg[i + 2] & 0xFF) << 8 | (jpeg[i + 3] & 0xFF));
+        }
+        return null;
+    }
+    
+    public Orientation getOrientation() {
+        return orientation;
+    }
+    
+    public boolean hasThumbnail() {
+        return thumbnail != null;
+    }
+    
+    // Stored orientation, 0 when there is no thumbnail
+    public int getThumbnailWidth() {
+        return thumbnailWidth;
+    }
+    
+    public int getThumbnailHeight() {
+        return thumbnailHeight;
+    }
+    
+    /**
+     * Whether the thumbnail can stand in for the image scaled to
+     * width x height: it is at least that big and the same shape as the
+     * image, to within a pixel. Cameras that shoot 3:2 or 16:9 often pad
+     * the thumbnail to 4:3 with black bars, and those don't qualify.
+     * 
+     * @param imageWidth the main image, stored orientation
+     * @param imageHeight
+     * @param width the wanted size, stored orientation
+     * @param height
+     */
+    public boolean thumbnailCovers(int imageWidth, int imageHeight, int width, int height) {
+        if(thumbnail == null || thumbnailWidth < width || thumbnailHeight < height) {
+            return false;
+        }
+        // the thumbnail's height if it had exactly the image's shape
+        long shaped = Math.round((double)thumbnailWidth * imageHeight / imageWidth);
+        return Math.abs(shaped - thumbnailHeight) <= 1;
+    }
+    
+    /**
+     * Decodes the thumbnail.
+     * 
+     * @return the thumbnail, stored orientation, or null if there is none
+     *         or it can't be decoded
+     */
+    public BufferedImage readThumbnail() throws IOException {
+        if(thumbnail == null) {
+            return null;
+        }
+        return ImageIO.read(new MappedImageInputStream(ByteBuffer.wrap(thumbnail)));
+    }
+    
+    @Override
+    public String toString() {
+        return "orientation " + orientation.exifTag()
+                + (thumbnail != null ? ", thumbnail " + thumbnailWidth + "x" + thumbnailHeight : "");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values, such as nanoseconds or bytes, in
+ * power of two buckets.
+ * 
+ * Recording is a few LongAdder increments with no locking or allocation,
+ * so it can be done for every image on every thread. The price is
+ * precision: a percentile is interpolated inside its bucket, which spans a
+ * factor of two. That is plenty to see a stage or a format get slower.
+ * 
+ * @author gtanner
+ */
+public class Histogram {
+    
+    // bucket b holds values from 2^(b-1) to 2^b - 1, bucket 0 holds 0
+    private static final int BUCKETS = 64;
+    
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    public Histogram() {
+        for(int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+    
+    /**
+     * @param value negative values count as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+    
+    public long getCount() {
+        return count.sum();
+    }
+    
+    public long getSum() {
+        return sum.sum();
+    }
+    
+    public long getMax() {
+        return max.get();
+    }
+    
+    public double getMean() {
+        long n = getCount();
+        return n > 0 ? (double)getSum() / n : 0;
+    }
+    
+    /**
+     * Nearest rank percentile, interpolated inside its bucket. Values being
+     * recorded at the same time may or may not be counted.
+     * 
+     * @param percentile 50 for the median
+     * @return the estimated value, 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for(int b = 0; b < BUCKETS; b++) {
+            counts[b] = buckets[b].sum();
+            n += counts[b];
+        }
+        if(n == 0) {
+            return 0;
+        }
+        
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for(int b = 0; b < BUCKETS; b++) {
+            if(seen + counts[b] >= rank) {
+                if(b == 0) {
+                    return 0;
+                }
+                long low = 1L << (b - 1);
+                long high = Math.min(getMax(), b == BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1);
+                double within = (double)(rank - seen) / counts[b];
+                return low + (long)((Math.max(low, high) - low) * within);
+            }
+            seen += counts[b];
+        }
+        return getMax();
+    }
+    
+    public void reset() {
+        for(LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Crops image files in source pixels.
+ * 
+ * A selection made on screen is in the coordinates of the view, which may
+ * show the image smaller than it is. toSourcePixels() maps it to the
+ * rectangle of the file it covers, and only that region is decoded, with
+ * ImageReadParam.setSourceRegion, then written. The crop has the full
+ * resolution of the source no matter how small it was displayed, and the
+ * pixels outside the region are never converted or kept.
+ * 
+ * cropAndResize() crops and scales in one pass with StreamingResizer: the
+ * region is read in strips, subsampled when scaling down by 2 or more, so
+ * a crop of a few hundred megapixels is never held in memory whole.
+ * 
+ * @author gtanner
+ */
+public class ImageCropper {
+    
+    // Memory for each of the source and destination strips of cropAndResize
+    private static final long STRIP_BYTES = 16 * 1024 * 1024;
+    
+    private final StreamingResizer streaming = new StreamingResizer(STRIP_BYTES);
+    private final ResampleFilter filter;
+    
+    public ImageCropper() {
+        this(ResampleFilter.LANCZOS3);
+    }
+    
+    /**
+     * @param filter used by cropAndResize
+     */
+    public ImageCropper(ResampleFilter filter) {
+        this.filter = filter;
+    }
+    
+    /**
+     * Maps a selection on a view of an image to the source pixels under it.
+     * Partly covered pixels are included.
+     * 
+     * @param selection in view coordinates
+     * @param viewWidth width the whole image is shown at
+     * @param viewHeight height the whole image is shown at
+     * @param sourceWidth width of the image file
+     * @param sourceHeight height of the image file
+     * @return the selected pixels of the source, empty if the selection
+     *         misses the image
+     */
+    public static Rectangle toSourcePixels(Rectangle2D selection, double viewWidth, double viewHeight,
+            int sourceWidth, int sourceHeight) {
+        double scaleX = sourceWidth / viewWidth;
+        double scaleY = sourceHeight / viewHeight;
+        
+        int x0 = (int)Math.floor(selection.getMinX() * scaleX);
+        int y0 = (int)Math.floor(selection.getMinY() * scaleY);
+        int x1 = (int)Math.ceil(selection.getMaxX() * scaleX);
+        int y1 = (int)Math.ceil(selection.getMaxY() * scaleY);
+        
+        Rectangle pixels = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        return pixels.intersection(new Rectangle(0, 0, sourceWidth, sourceHeight));
+    }
+    
+    /**
+     * Writes a region of the source at full resolution. The format comes
+     * from the output's extension.
+     * 
+     * @param source
+     * @param region source pixels to keep
+     * @param output
+     * @return the output
+     */
+    public File crop(File source, Rectangle region, File output) throws IOException {
+        BufferedImage cropped = SubsampledReader.read(source, region, region.width, region.height);
+        if(cropped == null) {
+            throw new IOException("No image reader for " + source);
+        }
+        
+        String format = formatOf(output);
+        if(format.equals("jpeg")) {
+            cropped = PixelConverter.toJpegSafe(cropped);
+        }
+        if(!ImageIO.write(cropped, format, output)) {
+            throw new IOException("No " + format + " writer available");
+        }
+        return output;
+    }
+    
+    /**
+     * Writes a region of the source scaled to fit inside a box, preserving
+     * the aspect ratio. The region isn't scaled up.
+     * 
+     * @param source
+     * @param region source pixels to keep, the part outside the image is
+     *        ignored
+     * @param output
+     * @param maxWidth
+     * @param maxHeight
+     * @return the output
+     */
+    public File cropAndResize(File source, Rectangle region, File output, int maxWidth, int maxHeight) throws IOException {
+        // StreamingResizer reads the clipped region, so the output has to
+        // have its shape
+        Dimension size = imageSize(source);
+        Rectangle area = region.intersection(new Rectangle(0, 0, size.width, size.height));
+        if(area.isEmpty()) {
+            throw new IOException("Region " + region + " is outside the image");
+        }
+        Dimension target = SubsampledReader.fitInside(area.width, area.height, maxWidth, maxHeight);
+        streaming.resize(source, area, output, formatOf(output), target.width, target.height, filter);
+        return output;
+    }
+    
+    // Reads the size from the header without decoding
+    private static Dimension imageSize(File source) throws IOException {
+        try(ImageInputStream iis = MappedImageInputStream.open(source)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if(readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(iis, true, true);
+                    return new Dimension(reader.getWidth(0), reader.getHeight(0));
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+        throw new IOException("No image reader for " + source);
+    }
+    
+    // ImageIO format name from the extension, jpeg if there is none
+    private static String formatOf(File output) {
+        String format = ResizeMetrics.formatOf(output);
+        return format.equals("unknown") ? "jpeg" : format;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reuses destination images and scratch arrays between resizes.
+ * 
+ * A resized photo is several megabytes, which G1 allocates as humongous
+ * objects straight into the old generation. Resizing thousands of them
+ * means thousands of those allocations and collections to free them.
+ * 
+ * Images are pooled by type and size class: width and height are rounded up
+ * to a multiple of 32 and the caller gets a getSubimage() view of the
+ * requested size, so a 800x511 and a 800x533 resize share buffers. Released
+ * images go to a small per-thread cache first, then to a shared pool, as
+ * long as the pooled total stays under the byte cap. Anything over the cap
+ * is left to the garbage collector.
+ * 
+ * The pixels of an acquired image are whatever the last user left there.
+ * release() only takes back views of images the pool created, anything
+ * else is left alone.
+ * 
+ * @author gtanner
+ */
+public class ImagePool {
+    
+    private static final int SIZE_CLASS = 32;
+    private static final int THREAD_CACHE = 4;
+    
+    private static final ImagePool SHARED = new ImagePool(Runtime.getRuntime().maxMemory() / 8);
+    
+    private final long maxBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    
+    private final Map<Key, ConcurrentLinkedDeque<BufferedImage>> images = new ConcurrentHashMap<>();
+    private final Map<Integer, ConcurrentLinkedDeque<int[]>> intArrays = new ConcurrentHashMap<>();
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(this::newThreadCache);
+    // every thread cache, so the ones of finished threads can be emptied
+    private final ConcurrentLinkedQueue<ThreadCache> threadCaches = new ConcurrentLinkedQueue<>();
+    // bumped by clear(), each thread empties its own cache when it sees it
+    private final AtomicInteger generation = new AtomicInteger();
+    // rasters of the images the pool created, weak so ones never released
+    // can still be collected. Rasters compare by identity.
+    private final Set<WritableRaster> created = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<WritableRaster, Boolean>()));
+    
+    /**
+     * @param maxBytes most bytes kept in the pool while not in use
+     */
+    public ImagePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * @return the pool used by the resizers, capped at 1/8 of the heap
+     */
+    public static ImagePool shared() {
+        return SHARED;
+    }
+    
+    /**
+     * @param type a BufferedImage.TYPE_ constant other than TYPE_CUSTOM
+     * @param width
+     * @param height
+     * @return an image of that type and size, give it back with release()
+     */
+    public BufferedImage acquire(int type, int width, int height) {
+        acquired.incrementAndGet();
+        Key key = new Key(type, roundUp(width), roundUp(height));
+        
+        BufferedImage pooled = takeFromThread(key);
+        if(pooled == null) {
+            ConcurrentLinkedDeque<BufferedImage> free = images.get(key);
+            pooled = free == null ? null : free.pollFirst();
+            if(pooled != null) {
+                retainedBytes.addAndGet(-bytes(pooled));
+            }
+        }
+        if(pooled != null) {
+            hits.incrementAndGet();
+        } else {
+            pooled = new BufferedImage(key.width, key.height, type);
+            created.add(pooled.getRaster());
+        }
+        
+        return pooled.getSubimage(0, 0, width, height);
+    }
+    
+    /**
+     * Returns an image from acquire() to the pool. The image must not be
+     * used afterwards. Images that didn't come from a pool are ignored.
+     * 
+     * @param image
+     */
+    public void release(BufferedImage image) {
+        if(image == null) {
+            return;
+        }
+        // the view's raster is a child of the pooled image's raster
+        WritableRaster parent = image.getRaster().getWritableParent();
+        if(parent == null || !created.contains(parent)) {
+            return;
+        }
+        BufferedImage pooled = new BufferedImage(image.getColorModel(), parent, image.isAlphaPremultiplied(), null);
+        if(pooled.getType() != image.getType() || !reserve(bytes(pooled))) {
+            return;
+        }
+        
+        ArrayDeque<BufferedImage> cache = ownCache().images;
+        cache.addFirst(pooled);
+        if(cache.size() > THREAD_CACHE) {
+            // the oldest goes to the shared pool
+            share(cache.removeLast());
+        }
+    }
+    
+    private void share(BufferedImage image) {
+        images.computeIfAbsent(keyOf(image), k -> new ConcurrentLinkedDeque<>()).addFirst(image);
+    }
+    
+    // This thread's cache, emptied first if clear() was called since it
+    // was last used
+    private ThreadCache ownCache() {
+        ThreadCache cache = threadCache.get();
+        int current = generation.get();
+        if(cache.generation != current) {
+            drop(cache);
+            cache.generation = current;
+        }
+        return cache;
+    }
+    
+    private ThreadCache newThreadCache() {
+        // batches start new worker threads, salvage the caches of old ones
+        int current = generation.get();
+        for(Iterator<ThreadCache> it = threadCaches.iterator(); it.hasNext(); ) {
+            ThreadCache cache = it.next();
+            if(!cache.owner.isAlive()) {
+                it.remove();
+                if(cache.generation == current) {
+                    for(BufferedImage image : cache.images) {
+                        share(image);
+                    }
+                } else {
+                    drop(cache);
+                }
+            }
+        }
+        ThreadCache cache = new ThreadCache(current);
+        threadCaches.add(cache);
+        return cache;
+    }
+    
+    /**
+     * @param length
+     * @return an int array of at least length, contents undefined
+     */
+    public int[] acquireInts(int length) {
+        acquired.incrementAndGet();
+        int size = Integer.highestOneBit(Math.max(1, length - 1)) << 1;
+        ConcurrentLinkedDeque<int[]> free = intArrays.get(size);
+        int[] array = free == null ? null : free.pollFirst();
+        if(array != null) {
+            hits.incrementAndGet();
+            retainedBytes.addAndGet(-4L * array.length);
+            return array;
+        }
+        return new int[size];
+    }
+    
+    /**
+     * @param array from acquireInts()
+     */
+    public void releaseInts(int[] array) {
+        if(array != null && Integer.bitCount(array.length) == 1 && reserve(4L * array.length)) {
+            intArrays.computeIfAbsent(array.length, k -> new ConcurrentLinkedDeque<>()).addFirst(array);
+        }
+    }
+    
+    // Empties a thread cache clear() has made stale
+    private void drop(ThreadCache cache) {
+        for(BufferedImage image; (image = cache.images.pollFirst()) != null; ) {
+            retainedBytes.addAndGet(-bytes(image));
+        }
+    }
+    
+    /**
+     * Drops every pooled image and array. Images in the per-thread caches
+     * are dropped by each thread on its next acquire or release, clear()
+     * doesn't touch them.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        // whoever takes an image out takes its bytes off, so an acquire
+        // running at the same time can't make the count go negative
+        for(ConcurrentLinkedDeque<BufferedImage> free : images.values()) {
+            for(BufferedImage image; (image = free.pollFirst()) != null; ) {
+                retainedBytes.addAndGet(-bytes(image));
+            }
+        }
+        for(ConcurrentLinkedDeque<int[]> free : intArrays.values()) {
+            for(int[] array; (array = free.pollFirst()) != null; ) {
+                retainedBytes.addAndGet(-4L * array.length);
+            }
+        }
+    }
+    
+    /**
+     * @return fraction of acquires served from the pool
+     */
+    public double getHitRate() {
+        long n = acquired.get();
+        return n == 0 ? 0 : (double)hits.get() / n;
+    }
+    
+    /**
+     * @return bytes held by the pool and not in use
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Image pool: %.1f%% hits of %d, %dKB retained of %dKB",
+                getHitRate() * 100, acquired.get(), getRetainedBytes() / 1024, maxBytes / 1024);
+    }
+    
+    private BufferedImage takeFromThread(Key key) {
+        for(Iterator<BufferedImage> it = ownCache().images.iterator(); it.hasNext(); ) {
+            BufferedImage image = it.next();
+            if(keyOf(image).equals(key)) {
+                it.remove();
+                retainedBytes.addAndGet(-bytes(image));
+                return image;
+            }
+        }
+        return null;
+    }
+    
+    // Counts bytes against the cap, false if they don't fit
+    private boolean reserve(long bytes) {
+        while(true) {
+            long current = retainedBytes.get();
+            if(current + bytes > maxBytes) {
+                return false;
+            }
+            if(retainedBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+    
+    private static int roundUp(int n) {
+        return (n + SIZE_CLASS - 1) / SIZE_CLASS * SIZE_CLASS;
+    }
+    
+    private static Key keyOf(BufferedImage image) {
+        return new Key(image.getType(), image.getWidth(), image.getHeight());
+    }
+    
+    private static long bytes(BufferedImage image) {
+        DataBuffer db = image.getRaster().getDataBuffer();
+        return (long)db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+    
+    // Only used by its owner thread, or after the owner has finished
+    private static final class ThreadCache {
+        final Thread owner = Thread.currentThread();
+        final ArrayDeque<BufferedImage> images = new ArrayDeque<>();
+        // of the pool when the images were added
+        int generation;
+        
+        ThreadCache(int generation) {
+            this.generation = generation;
+        }
+    }
+    
+    private static final class Key {
+        final int type;
+        final int width;
+        final int height;
+        
+        Key(int type, int width, int height) {
+            this.type = type;
+            this.width = width;
+            this.height = height;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return type == k.type && width == k.width && height == k.height;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (type * 31 + width) * 31 + height;
+        }
+    }
+}
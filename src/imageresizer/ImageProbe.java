@@ -0,0 +1,300 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import imageresizer.ResizeMetrics.Operation;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * What an image file holds, read from its headers without decoding it.
+ * 
+ * A jpeg is read here, walking its markers up to the first scan: the size
+ * and number of components come from the frame header, the orientation
+ * from the EXIF segment. That's a few reads of a few bytes, where the jpeg
+ * ImageReader takes milliseconds to set up its decoder just to answer
+ * getWidth(). Other formats ask their ImageReader, whose getWidth(),
+ * getHeight() and getImageTypes() only parse the headers when nothing has
+ * been read yet; for a png the interlace flag comes from its IHDR chunk.
+ * Either way the planner can look at every file of a batch before deciding
+ * what to do with it.
+ * 
+ * @author gtanner
+ */
+public class ImageProbe {
+    
+    // What ImageIO decodes jpegs to
+    private static final ImageTypeSpecifier GRAY = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_BYTE_GRAY);
+    private static final ImageTypeSpecifier BGR = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR);
+    
+    private final File file;
+    private final long fileSize;
+    private final String format;
+    private int width;
+    private int height;
+    private ImageTypeSpecifier type;
+    private int orientation = 1;
+    private boolean progressive;
+    private boolean exif;
+    
+    private ImageProbe(File file, String format) {
+        this.file = file;
+        this.fileSize = file.length();
+        this.format = format;
+    }
+    
+    /**
+     * @param file
+     * @return the header information of the image
+     * @throws IOException if no reader handles the file
+     */
+    public static ImageProbe probe(File file) throws IOException {
+        long start = System.nanoTime();
+        try {
+            ImageProbe probe = read(file);
+            ResizeMetrics.shared().record(Operation.PROBE, probe.format, System.nanoTime() - start, 0, 0);
+            return probe;
+        } catch(IOException | RuntimeException e) {
+            ResizeMetrics.shared().recordError(Operation.PROBE, ResizeMetrics.formatOf(file), e);
+            throw e;
+        }
+    }
+    
+    private static ImageProbe read(File file) throws IOException {
+        try(ImageInputStream iis = MappedImageInputStream.open(file)) {
+            // jpegs don't need a reader, which saves asking every
+            // installed reader whether it can decode the file
+            if(iis.readUnsignedShort() == 0xFFD8) {
+                ImageProbe probe = new ImageProbe(file, "jpeg");
+                probe.readJpegMarkers(iis);
+                if(probe.width > 0) {
+                    return probe;
+                }
+            }
+            iis.seek(0);
+            
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if(!readers.hasNext()) {
+                throw new IOException("No image reader for " + file);
+            }
+            
+            ImageReader reader = readers.next();
+            ImageProbe probe = new ImageProbe(file, reader.getFormatName().toLowerCase());
+            try {
+                if(probe.format.equals("png")) {
+                    // interlace method is the last byte of IHDR. Read before
+                    // the reader, which may flush what it has read.
+                    iis.seek(28);
+                    probe.progressive = iis.read() == 1;
+                    iis.seek(0);
+                }
+                
+                reader.setInput(iis, true, true);
+                probe.width = reader.getWidth(0);
+                probe.height = reader.getHeight(0);
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                probe.type = types.hasNext() ? types.next() : null;
+            } finally {
+                reader.dispose();
+            }
+            return probe;
+        }
+    }
+    
+    // Walks the markers up to the first scan, starting after SOI. A broken
+    // segment ends the walk, keeping what was found so far.
+    private void readJpegMarkers(ImageInputStream iis) {
+        try {
+            walkMarkers(iis);
+        } catch(IOException e) {
+            // truncated or corrupt, the reader will say more when decoding
+        }
+    }
+    
+    private void walkMarkers(ImageInputStream iis) throws IOException {
+        while(iis.read() == 0xFF) {
+            int marker;
+            do {
+                // 0xFF can be repeated as fill
+                marker = iis.read();
+            } while(marker == 0xFF);
+            
+            if(marker < 0 || marker == 0xDA || marker == 0xD9) {
+                // start of scan or end of image
+                return;
+            }
+            if(marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // no length
+                continue;
+            }
+            
+            int length = iis.readUnsignedShort();
+            long next = iis.getStreamPosition() + length - 2;
+            if(marker == 0xE1 && !exif) {
+                readExif(iis);
+            } else if(marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // SOF2, 6, 10 and 14 are the progressive frames
+                progressive = (marker & 0x03) == 0x02;
+                readFrame(iis);
+            }
+            iis.seek(next);
+        }
+    }
+    
+    // Size and components from the frame header. ImageIO decodes gray to
+    // TYPE_BYTE_GRAY and YCbCr to TYPE_3BYTE_BGR; CMYK has no type.
+    private void readFrame(ImageInputStream iis) throws IOException {
+        iis.read();
+        int frameHeight = iis.readUnsignedShort();
+        int frameWidth = iis.readUnsignedShort();
+        int components = iis.read();
+        if(frameHeight == 0) {
+            // height comes later in a DNL marker, let the reader work it out
+            return;
+        }
+        if(components == 1) {
+            type = GRAY;
+        } else if(components == 3) {
+            type = BGR;
+        }
+        width = frameWidth;
+        height = frameHeight;
+    }
+    
+    // Finds the orientation tag in IFD0 of an APP1 Exif segment
+    private void readExif(ImageInputStream iis) throws IOException {
+        if(iis.readInt() != 0x45786966 || iis.readUnsignedShort() != 0) {
+            // not "Exif\0\0", maybe XMP
+            return;
+        }
+        exif = true;
+        long tiff = iis.getStreamPosition();
+        int order = iis.readUnsignedShort();
+        iis.setByteOrder(order == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        try {
+            if(iis.readUnsignedShort() != 42) {
+                return;
+            }
+            iis.seek(tiff + iis.readUnsignedInt());
+            
+            int entries = iis.readUnsignedShort();
+            for(int i = 0; i < entries; i++) {
+                int tag = iis.readUnsignedShort();
+                int fieldType = iis.readUnsignedShort();
+                iis.readUnsignedInt();
+                // a SHORT value is at the start of the 4 byte value field
+                int value = iis.readUnsignedShort();
+                iis.readUnsignedShort();
+                if(tag == 0x0112 && fieldType == 3) {
+                    if(value >= 1 && value <= 8) {
+                        orientation = value;
+                    }
+                    return;
+                }
+            }
+        } finally {
+            iis.setByteOrder(ByteOrder.BIG_ENDIAN);
+        }
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public long getFileSize() {
+        return fileSize;
+    }
+    
+    // Lower case reader format name, for example "jpeg" or "png"
+    public String getFormat() {
+        return format;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * @return the BufferedImage.TYPE_ the reader decodes to, TYPE_CUSTOM
+     *         if it is none of them or unknown
+     */
+    public int getImageType() {
+        return type != null ? type.getBufferedImageType() : BufferedImage.TYPE_CUSTOM;
+    }
+    
+    /**
+     * @return color model of the decoded image, null if the reader didn't say
+     */
+    public ColorModel getColorModel() {
+        return type != null ? type.getColorModel() : null;
+    }
+    
+    /**
+     * @return EXIF orientation, 1 to 8. 1 is upright and also used when the
+     *         file has none.
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+    
+    // Progressive jpeg or interlaced png
+    public boolean isProgressive() {
+        return progressive;
+    }
+    
+    /**
+     * @return bytes of the raster a full decode makes
+     */
+    public long decodedBytes() {
+        return decodedBytes(width, height);
+    }
+    
+    /**
+     * Bytes of the raster SubsampledReader makes to cover a target size,
+     * and for a reduced jpeg the decoder's work space.
+     * 
+     * @param targetWidth
+     * @param targetHeight
+     * @return estimated bytes
+     */
+    public long decodedBytes(int targetWidth, int targetHeight) {
+        int factor = SubsampledReader.subsampling(width, height, targetWidth, targetHeight);
+        long pixels = (long)((width + factor - 1) / factor) * ((height + factor - 1) / factor);
+        ColorModel cm = getColorModel();
+        // ints when the reader doesn't say
+        int bytesPerPixel = cm != null ? (cm.getPixelSize() + 7) / 8 : 4;
+        long bytes = pixels * bytesPerPixel;
+        if(factor > 1 && format.equals("jpeg")) {
+            // ScaledJpegDecoder's component planes, and a progressive jpeg's
+            // coefficients, 2 bytes per sample at full size, until the last
+            // scan
+            int components = Math.min(bytesPerPixel, 3);
+            bytes += pixels * components;
+            if(progressive) {
+                bytes += (long)width * height * 2 * components;
+            }
+        }
+        return bytes;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%s: %dx%d %s, type %d%s, orientation %d, %dKB", file.getName(), width, height, format,
+                getImageType(), progressive ? ", progressive" : "", orientation, fileSize / 1024);
+    }
+}
@@ -3,23 +3,176 @@
  */
 package imageresizer;
 
-import java.awt.Image;
+import imageresizer.BatchSummary.Stage;
+import imageresizer.ResizeMetrics.Operation;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 /**
- *
+ * 
  * @author gtanner
  */
 public class ImageResizer {
     
+    // Name of the folder the resized jpegs are written to
+    public static final String OUTPUT_FOLDER = "resized";
+    
+    // Part of parameters(), so cached and manifest entries are made again
+    // when the same settings give different output. 2: EXIF orientation.
+    static final int OUTPUT_VERSION = 2;
+    
+    private static final ResizeMetrics METRICS = ResizeMetrics.shared();
+    
+    // Number of images resized at the same time by resizeAll
+    private int concurrency = Runtime.getRuntime().availableProcessors();
+    
+    public int getConcurrency() {
+        return concurrency;
+    }
+    
+    public void setConcurrency(int concurrency) {
+        if(concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+    
+    // Run resizeAll as separate reader, resize and writer stages, see
+    // StagedResizer. The resize stage has getConcurrency() threads.
+    private boolean pipelined;
+    private int readers = 2;
+    private int writers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    
+    public boolean isPipelined() {
+        return pipelined;
+    }
+    
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+    
+    public int getReaders() {
+        return readers;
+    }
+    
+    // Threads reading source files in pipelined mode
+    public void setReaders(int readers) {
+        if(readers < 1) {
+            throw new IllegalArgumentException("readers must be at least 1: " + readers);
+        }
+        this.readers = readers;
+    }
+    
+    public int getWriters() {
+        return writers;
+    }
+    
+    // Threads encoding and writing files in pipelined mode
+    public void setWriters(int writers) {
+        if(writers < 1) {
+            throw new IllegalArgumentException("writers must be at least 1: " + writers);
+        }
+        this.writers = writers;
+    }
+    
+    // Kernel used when scaling
+    private ResampleFilter filter = ResampleFilter.LANCZOS3;
+    
+    public ResampleFilter getFilter() {
+        return filter;
+    }
+    
+    public void setFilter(ResampleFilter filter) {
+        if(filter == null) {
+            throw new IllegalArgumentException("filter can't be null");
+        }
+        this.filter = filter;
+    }
+    
+    // Split each resize into bands of rows resampled on all cores, for one
+    // or a few very large images, see Resampler.resizeInBands
+    private boolean parallelBands;
+    
+    public boolean isParallelBands() {
+        return parallelBands;
+    }
+    
+    public void setParallelBands(boolean parallelBands) {
+        this.parallelBands = parallelBands;
+    }
+    
+    // Format of the files written, any ImageIO writer name
+    private String format = "jpg";
+    
+    public String getFormat() {
+        return format;
+    }
+    
+    public void setFormat(String format) {
+        if(format == null || !ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            throw new IllegalArgumentException("No image writer for " + format);
+        }
+        this.format = format.toLowerCase();
+    }
+    
+    // Largest jpeg written, 0 writes at the default quality with no limit
+    private long maxFileSize = JpegSizeEncoder.DEFAULT_MAX_BYTES;
+    
+    // Encoders keep their buffers between images, one per worker thread
+    private final ThreadLocal<JpegSizeEncoder> encoders = ThreadLocal.withInitial(JpegSizeEncoder::new);
+    
+    // Skip files resizeAll has already resized with the same settings
+    private boolean incremental;
+    
+    public boolean isIncremental() {
+        return incremental;
+    }
+    
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+    
+    // Cache of resized files, null for none
+    private RenditionCache cache;
+    
+    public RenditionCache getCache() {
+        return cache;
+    }
+    
+    public void setCache(RenditionCache cache) {
+        this.cache = cache;
+    }
+    
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+    
+    public void setMaxFileSize(long maxFileSize) {
+        if(maxFileSize < 0) {
+            throw new IllegalArgumentException("maxFileSize can't be negative: " + maxFileSize);
+        }
+        this.maxFileSize = maxFileSize;
+    }
+    
     /**
      * Resizes an image to the percent given.
      * 
@@ -35,21 +188,332 @@ public class ImageResizer {
      * Resizes an image to the max width. Aspect ratio is preserved, so height 
      * gets calculated automatically.
      * 
+     * The resized jpeg is written to the OUTPUT_FOLDER next to the original.
+     * 
      * @param originalFile
      * @param maxWidth
      * @return File containing the resized jpeg
      */
     public File resizeImage(File imageFile, int width) throws IOException {
-        Image img = ImageIO.read(imageFile);
-        //BufferedImage newJpg = resizeImage(img, width);
+        Path outputDir = imageFile.toPath().toAbsolutePath().resolveSibling(OUTPUT_FOLDER);
+        Files.createDirectories(outputDir);
         
-        return null;
+        File outputFile = outputDir.resolve(outputName(imageFile.toPath(), format)).toFile();
+        return resizeImage(imageFile, outputFile, width);
+    }
+    
+    /**
+     * Resizes an image to the max width and writes it as a jpeg no bigger
+     * than getMaxFileSize(). The image is scaled further only if the lowest
+     * jpeg quality is still too big.
+     * 
+     * With a cache set, a file already resized with the same settings is
+     * copied from the cache without decoding it.
+     * 
+     * @param imageFile
+     * @param outputFile
+     * @param maxWidth
+     * @return the outputFile
+     */
+    public File resizeImage(File imageFile, File outputFile, int width) throws IOException {
+        return resizeImage(imageFile, outputFile, widthSpec(width), null);
+    }
+    
+    /**
+     * Resizes an image to a rendition and writes it in getFormat(). Jpegs
+     * are kept under the rendition's max bytes, see JpegSizeEncoder; other
+     * formats have no size limit and keep their transparency.
+     * 
+     * With a cache set, a file already resized with the same settings is
+     * copied from the cache without decoding it.
+     * 
+     * @param imageFile
+     * @param outputFile
+     * @param spec size of the output
+     * @param timing gets the time spent reading and writing files, decoding,
+     *        resampling and encoding; may be null
+     * @return the outputFile
+     */
+    public File resizeImage(File imageFile, File outputFile, RenditionSpec spec, BatchSummary timing) throws IOException {
+        // Load the whole file first so decoding isn't timed with the disk
+        long start = System.nanoTime();
+        ByteBuffer encoded = read(imageFile);
+        String key = cacheKey(encoded, spec);
+        boolean hit = key != null && cache.copyTo(key, outputFile);
+        time(timing, Stage.IO, start);
+        if(hit) {
+            return outputFile;
+        }
+        
+        BufferedImage resized = decodeAndScale(encoded, imageFile, spec, timing);
+        encodeAndWrite(resized, outputFile, spec, timing);
+        
+        if(key != null) {
+            cache.put(key, outputFile);
+        }
+        return outputFile;
+    }
+    
+    // The steps of resizeImage, also run on separate threads by StagedResizer
+    
+    // Maps or reads the whole source file
+    ByteBuffer read(File imageFile) throws IOException {
+        long start = System.nanoTime();
+        try {
+            ByteBuffer encoded = MappedImageInputStream.load(imageFile.toPath());
+            METRICS.record(Operation.READ, ResizeMetrics.formatOf(imageFile), System.nanoTime() - start,
+                    encoded.remaining(), 0);
+            return encoded;
+        } catch(IOException | RuntimeException e) {
+            METRICS.recordError(Operation.READ, ResizeMetrics.formatOf(imageFile), e);
+            throw e;
+        }
+    }
+    
+    // Key of the source in the cache, null with no cache
+    String cacheKey(ByteBuffer encoded, RenditionSpec spec) {
+        return cache == null ? null : RenditionCache.key(encoded, parameters(spec));
+    }
+    
+    // Decodes only as many pixels as the rendition needs and scales them to
+    // the rendition. The result comes from the ImagePool.
+    BufferedImage decodeAndScale(ByteBuffer encoded, File imageFile, RenditionSpec spec, BatchSummary timing) throws IOException {
+        String source = ResizeMetrics.formatOf(imageFile);
+        Operation op = Operation.DECODE;
+        try {
+            long start = System.nanoTime();
+            long encodedBytes = encoded.remaining();
+            Dimension target = new Dimension();
+            DecodedImage decoded;
+            try(ImageInputStream iis = new MappedImageInputStream(encoded)) {
+                decoded = SubsampledReader.read(iis, spec, target);
+            }
+            if(decoded == null) {
+                throw new IOException("No image reader for " + imageFile);
+            }
+            BufferedImage img = decoded.getImage();
+            long decodedPixels = (long)img.getWidth() * img.getHeight();
+            long now = time(timing, Stage.DECODE, start);
+            METRICS.record(op, source, now - start, encodedBytes, decodedPixels);
+            start = now;
+            
+            op = Operation.RESAMPLE;
+            // transparent pixels are composited onto white unless the format keeps them
+            int type = isJpeg() || !img.getColorModel().hasAlpha()
+                    ? PixelConverter.jpegType(img) : BufferedImage.TYPE_INT_ARGB;
+            BufferedImage resized = ImagePool.shared().acquire(type, target.width, target.height);
+            // target is upright, the resampler turns camera images as it writes
+            if(parallelBands) {
+                Resampler.resizeInBands(img, resized, filter, decoded.getOrientation());
+            } else {
+                Resampler.resize(img, resized, filter, decoded.getOrientation());
+            }
+            METRICS.record(op, source, time(timing, Stage.RESAMPLE, start) - start, 0, decodedPixels);
+            return resized;
+        } catch(IOException | RuntimeException e) {
+            METRICS.recordError(op, source, e);
+            throw e;
+        }
+    }
+    
+    // Encodes in getFormat() and writes the file. The image is released to
+    // the ImagePool.
+    void encodeAndWrite(BufferedImage resized, File outputFile, RenditionSpec spec, BatchSummary timing) throws IOException {
+        String output = ResizeMetrics.normalize(format);
+        long pixels = (long)resized.getWidth() * resized.getHeight();
+        Operation op = Operation.ENCODE;
+        long start = System.nanoTime();
+        try {
+            long bytes;
+            if(isJpeg() && spec.getMaxBytes() > 0) {
+                JpegSizeEncoder encoder = encoders.get();
+                BufferedImage written = encoder.encode(resized, spec.getMaxBytes());
+                if(written != resized) {
+                    ImagePool.shared().release(written);
+                }
+                bytes = encoder.size();
+                start = encoded(timing, output, start, bytes, pixels);
+                op = Operation.WRITE;
+                try(OutputStream out = new FileOutputStream(outputFile)) {
+                    encoder.writeTo(out);
+                }
+            } else {
+                // ImageIO.write(OutputStream) would cache in a temp file
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try(ImageOutputStream ios = new MemoryCacheImageOutputStream(buffer)) {
+                    if(!ImageIO.write(resized, format, ios)) {
+                        throw new IOException("No " + format + " writer available");
+                    }
+                }
+                bytes = buffer.size();
+                start = encoded(timing, output, start, bytes, pixels);
+                op = Operation.WRITE;
+                try(OutputStream out = new FileOutputStream(outputFile)) {
+                    buffer.writeTo(out);
+                }
+            }
+            METRICS.record(op, output, time(timing, Stage.IO, start) - start, bytes, 0);
+        } catch(IOException | RuntimeException e) {
+            METRICS.recordError(op, output, e);
+            throw e;
+        } finally {
+            ImagePool.shared().release(resized);
+        }
+    }
+    
+    private static long encoded(BatchSummary timing, String format, long start, long bytes, long pixels) {
+        long now = time(timing, Stage.ENCODE, start);
+        METRICS.record(Operation.ENCODE, format, now - start, bytes, pixels);
+        return now;
+    }
+    
+    /**
+     * Whether a source can be used as its own rendition: a jpeg going to a
+     * jpeg, upright, already the rendition's size and within its byte limit.
+     * Copying it saves a decode and a lossy re-encode.
+     * 
+     * @param probe headers of the source
+     * @param spec
+     * @return true if copying the source gives the rendition
+     */
+    boolean canCopy(ImageProbe probe, RenditionSpec spec) {
+        if(!isJpeg() || !probe.getFormat().equals("jpeg") || probe.getOrientation() != 1
+                || probe.getImageType() == BufferedImage.TYPE_CUSTOM) {
+            // CMYK, or EXIF rotation, which a resize turns into the pixels
+            return false;
+        }
+        Dimension target = spec.targetSize(probe.getWidth(), probe.getHeight());
+        return target.width == probe.getWidth() && target.height == probe.getHeight()
+                && (spec.getMaxBytes() <= 0 || probe.getFileSize() <= spec.getMaxBytes());
+    }
+    
+    /**
+     * Estimates the most heap one resize of a source holds at once: the
+     * decoded source raster, a converted copy if the resampler can't read
+     * the decoded type, the destination, the resampler's rows and the
+     * encoded output. Mapped source files aren't on the heap.
+     * 
+     * @param probe headers of the source
+     * @param spec
+     * @return estimated peak bytes
+     */
+    long peakBytes(ImageProbe probe, RenditionSpec spec) {
+        // the rendition is sized upright, the source decoded as stored
+        Orientation orientation = Orientation.fromExif(probe.getOrientation());
+        Dimension upright = orientation.turn(probe.getWidth(), probe.getHeight());
+        Dimension target = spec.targetSize(upright.width, upright.height);
+        target = orientation.turn(target.width, target.height);
+        int factor = SubsampledReader.subsampling(probe.getWidth(), probe.getHeight(), target.width, target.height);
+        long decodedPixels = (long)((probe.getWidth() + factor - 1) / factor) * ((probe.getHeight() + factor - 1) / factor);
+        long targetPixels = (long)target.width * target.height;
+        
+        long bytes = probe.decodedBytes(target.width, target.height);
+        int type = probe.getImageType();
+        if(type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+                || type == BufferedImage.TYPE_BYTE_BINARY) {
+            bytes += decodedPixels * 4;
+        }
+        // destination, ints at most
+        bytes += targetPixels * 4;
+        // ring of filtered rows, 4 channels of ints, as in WeightTable
+        double stretch = Math.max(1, (double)probe.getHeight() / factor / target.height);
+        int taps = (int)Math.ceil(filter.getRadius() * stretch * 2) + 1;
+        bytes += (long)(taps + 1) * target.width * 4 * 4;
+        // encoded output, rarely more than the raw pixels
+        bytes += targetPixels * (isJpeg() ? 3 : 4);
+        return bytes;
+    }
+    
+    // Adds the time since start to the stage, returns now
+    private static long time(BatchSummary timing, Stage stage, long start) {
+        long now = System.nanoTime();
+        if(timing != null) {
+            timing.addTime(stage, now - start);
+        }
+        return now;
+    }
+    
+    private boolean isJpeg() {
+        return format.equals("jpg") || format.equals("jpeg");
+    }
+    
+    /**
+     * Scales an image down to the max width, preserving the aspect ratio.
+     * Images already narrower than the max width keep their size.
+     * 
+     * The result is always opaque so it can be written as a jpeg.
+     * 
+     * @param img
+     * @param maxWidth
+     * @return the resized image
+     */
+    public BufferedImage resizeImage(BufferedImage img, int width) {
+        int new_width = Math.min(width, img.getWidth());
+        int new_height = Math.max(1, (int)((long)new_width * img.getHeight() / img.getWidth()));
+        
+        return scale(img, new_width, new_height, filter);
+    }
+    
+    /**
+     * Scales an image to exactly the given size.
+     * 
+     * @param img
+     * @param new_width
+     * @param new_height
+     * @return an opaque image the jpeg writer accepts
+     */
+    public static BufferedImage scale(BufferedImage img, int new_width, int new_height) {
+        return scale(img, new_width, new_height, ResampleFilter.LANCZOS3);
+    }
+    
+    /**
+     * Scales an image to exactly the given size with the given kernel.
+     * 
+     * @param img
+     * @param new_width
+     * @param new_height
+     * @param filter
+     * @return an opaque image the jpeg writer accepts, from the ImagePool.
+     *         Release it when done to have it reused.
+     */
+    public static BufferedImage scale(BufferedImage img, int new_width, int new_height, ResampleFilter filter) {
+        return scale(img, new_width, new_height, filter, Orientation.NORMAL);
+    }
+    
+    /**
+     * Scales an image as stored to the given upright size, turning it by
+     * its EXIF orientation in the same pass.
+     * 
+     * @param img
+     * @param new_width
+     * @param new_height
+     * @param filter
+     * @param orientation
+     * @return an opaque image the jpeg writer accepts, from the ImagePool.
+     *         Release it when done to have it reused.
+     */
+    public static BufferedImage scale(BufferedImage img, int new_width, int new_height, ResampleFilter filter,
+            Orientation orientation) {
+        // Transparent pixels are composited onto white
+        int type = PixelConverter.jpegType(img);
+        BufferedImage resizedImg = ImagePool.shared().acquire(type, new_width, new_height);
+        Resampler.resize(img, resizedImg, filter, orientation);
+        
+        return resizedImg;
     }
     
     /**
      * Resizes all images in a given folder to a max width, 
      * preserving the aspect ratio.
      * 
+     * Images are resized concurrently, see setConcurrency(int). In pipelined
+     * mode reading, resizing and writing run as separate stages, see
+     * StagedResizer. A summary with the throughput of the batch is printed
+     * when it is done.
+     * 
+     * In incremental mode only files that changed since the last run, or
+     * were resized with other settings, are resized again.
+     * 
      * @param directoryName
      * @param maxWidth
      * @return File folder containing the resized jpegs
@@ -59,24 +523,112 @@ public class ImageResizer {
         // create Path object based on user input (String)
         Path path = Paths.get(directoryName);
         
-        if(Files.isDirectory(path)) {
-            // output directory listing
-            System.out.printf("%n Directory contents:%n"); 
-
-            // object for iterating through a driectory's contents
-            DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path);
-
-            for(Path p : directoryStream) {
-                System.out.println(p);
-            }
-        }
-        else {
+        if(!Files.isDirectory(path)) {
             // not a file or directory, output error message
             System.out.printf("%s does not exist%n", path);
+            return null;
         }
         
+        Path outputDir = path.resolve(OUTPUT_FOLDER);
+        Files.createDirectories(outputDir);
         
+        BatchResizer batch = newBatch();
+        BatchSummary summary;
+        if(incremental) {
+            summary = resizeChanged(batch, listImages(path), outputDir, maxWidth);
+        } else {
+            summary = batch.run(listImages(path), outputDir, maxWidth);
+        }
+        System.out.println(summary);
+        if(pipelined) {
+            System.out.println(batch);
+        }
+        System.out.println(ImagePool.shared());
+        System.out.println(MemoryBudget.shared());
         
-        return null;
+        return outputDir.toFile();
+    }
+    
+    // Runs a batch with this resizer's settings
+    BatchResizer newBatch() {
+        return pipelined ? new StagedResizer(this, readers, concurrency, writers) : new BatchResizer(this, concurrency);
+    }
+    
+    // Resizes only the files the manifest doesn't have as current. The scan
+    // is one stat per source plus an exists check on its output.
+    private BatchSummary resizeChanged(BatchResizer batch, List<Path> images, Path outputDir, int maxWidth) throws IOException {
+        ResizeManifest manifest = ResizeManifest.load(outputDir);
+        String parameters = parameters(widthSpec(maxWidth));
+        
+        Map<Path, BasicFileAttributes> changed = new HashMap<>();
+        List<String> names = new ArrayList<>(images.size());
+        for(Path p : images) {
+            BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class);
+            names.add(p.getFileName().toString());
+            if(!manifest.isCurrent(p, attributes, parameters, outputDir.resolve(outputName(p, format)))) {
+                changed.put(p, attributes);
+            }
+        }
+        
+        BatchSummary summary = batch.run(new ArrayList<>(changed.keySet()), outputDir, maxWidth,
+                p -> manifest.record(p, changed.get(p), parameters));
+        summary.addSkipped(images.size() - changed.size());
+        
+        manifest.retain(names);
+        manifest.save();
+        return summary;
+    }
+    
+    // Everything that changes the output of resizeImage
+    String parameters(RenditionSpec spec) {
+        String parameters = "v=" + OUTPUT_VERSION + ";" + spec.sizeParameters() + ";filter=" + filter
+                + ";maxBytes=" + spec.getMaxBytes();
+        return isJpeg() ? parameters : parameters + ";format=" + format;
+    }
+    
+    // Rendition made by the max width methods
+    RenditionSpec widthSpec(int width) {
+        return RenditionSpec.fit("w" + width, width, Integer.MAX_VALUE).withMaxBytes(maxFileSize);
+    }
+    
+    /**
+     * Lists the image files directly inside a folder.
+     * 
+     * @param directory
+     * @return paths of the images, in directory order
+     */
+    public static List<Path> listImages(Path directory) throws IOException {
+        List<Path> images = new ArrayList<>();
+        
+        // object for iterating through a directory's contents
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+            for(Path p : directoryStream) {
+                if(Files.isRegularFile(p) && isImageFile(p)) {
+                    images.add(p);
+                }
+            }
+        }
+        return images;
+    }
+    
+    // Same extensions accepted by ImageScaleDragDrop
+    public static boolean isImageFile(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        return name.endsWith(".png")
+                || name.endsWith(".jpeg")
+                || name.endsWith(".jpg")
+                || name.endsWith(".gif");
+    }
+    
+    // The resized file keeps the original name, with a .jpg extension
+    static String outputName(Path source) {
+        return outputName(source, "jpg");
+    }
+    
+    // The resized file keeps the original name, with the format's extension
+    static String outputName(Path source, String format) {
+        String name = source.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + "." + format;
     }
 }
@@ -5,11 +5,12 @@
  */
 package imageresizer;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 
 /**
@@ -50,62 +51,93 @@ public class ImageScaleByPercent {
         // New file to store the new scaled image
         File scaledMallard = new File("C:\\Users\\gtanner\\Desktop\\images\\scaledMallard.jpg");
         File scaledPercentMallard = new File("C:\\Users\\gtanner\\Desktop\\images\\scaledPercentMallard.jpg");
-
+        
         try {
             // Read the image
             File imageFile = new File("src\\imageresizer\\mallard.jpg");
-            BufferedImage testImage = readFromFile(imageFile);
+            DecodedImage testImage = readFromFile(imageFile);
             
             // Get the file size in KB
             System.out.println("Original File size: " + imageFile.length()/1024);
             
-            // Scale the image down using a fixed size
-            BufferedImage scaledImage = getScaledImage(testImage, 800, 600);
+            // Scale the image down using a fixed size. The size is known
+            // before reading, so only decode as many pixels as it needs.
+            DecodedImage subsampledImage = readFromFile(imageFile, 800, 600);
+            BufferedImage scaledImage = getScaledImage(subsampledImage.getImage(), 800, 600,
+                    subsampledImage.getOrientation());
             // Write the buffered image (scaledImage) to a new file (scaledMallard.jpg)
             ImageIO.write(scaledImage, "jpg", scaledMallard);
             printDimensionsAndFileSize(scaledImage, scaledMallard);
+            ImagePool.shared().release(scaledImage);
             
             // Scale the image down using a fixed size
-            BufferedImage scaledPercentImage = getScaledImageByPercent(testImage, .5);
+            BufferedImage scaledPercentImage = getScaledImageByPercent(testImage.getImage(), .5,
+                    testImage.getOrientation());
             // Write the buffered image (scaledImage) to a new file (scaledMallard.jpg)
             ImageIO.write(scaledPercentImage, "jpg", scaledPercentMallard);
             printDimensionsAndFileSize(scaledPercentImage, scaledPercentMallard);
+            ImagePool.shared().release(scaledPercentImage);
         } catch(IOException ioe) {
-            ioe.getMessage();
+            Logger.getLogger(ImageScaleByPercent.class.getName()).log(Level.SEVERE, null, ioe);
         }     
     }
     
-    // Returns a BufferedImage from a File
-    private static BufferedImage readFromFile(File filename) throws IOException {
+    // Returns the image in a File, as stored, and the EXIF orientation that
+    // turns it upright
+    private static DecodedImage readFromFile(File filename) throws IOException {
         // Read image from a local file
-        BufferedImage originalImage = ImageIO.read(filename);
-        printDimensionsAndFileSize(originalImage, filename);
+        DecodedImage originalImage = ReadImage.decodeFile(filename);
+        printDimensionsAndFileSize(originalImage.getImage(), filename);
+        System.out.println("Orientation: " + originalImage.getOrientation());
         
         return originalImage;
     }
     
-    private static BufferedImage getScaledImageByPercent(BufferedImage originalImage, double percent) {
-        int IMG_WIDTH = (int)(originalImage.getWidth() * percent);
-        int IMG_HEIGHT = (int)(originalImage.getHeight() * percent);
+    // Returns the image in a File, subsampled while decoding to the smallest
+    // size that still covers w x h once upright. Small sizes may get the
+    // EXIF thumbnail instead.
+    private static DecodedImage readFromFile(File filename, int w, int h) throws IOException {
+        DecodedImage subsampledImage = SubsampledReader.readToFit(filename, w, h);
+        printDimensionsAndFileSize(subsampledImage.getImage(), filename);
+        System.out.println("Orientation: " + subsampledImage.getOrientation()
+                + (subsampledImage.isThumbnail() ? ", EXIF thumbnail" : ""));
+        
+        return subsampledImage;
+    }
+    
+    // The scaled images come from the ImagePool, release them when done
+    static BufferedImage getScaledImageByPercent(BufferedImage originalImage, double percent) {
+        return getScaledImageByPercent(originalImage, percent, Orientation.NORMAL);
+    }
+    
+    // Scales and turns upright in one pass
+    static BufferedImage getScaledImageByPercent(BufferedImage originalImage, double percent, Orientation orientation) {
+        Dimension upright = orientation.turn(originalImage.getWidth(), originalImage.getHeight());
+        int IMG_WIDTH = (int)(upright.width * percent);
+        int IMG_HEIGHT = (int)(upright.height * percent);
         
-        // Preserve type if we can
-        int type = originalImage.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : originalImage.getType();
-        BufferedImage resizedImage = new BufferedImage(IMG_WIDTH, IMG_HEIGHT, type);
-        Graphics2D g = resizedImage.createGraphics();
-        g.drawImage(originalImage, 0, 0, IMG_WIDTH, IMG_HEIGHT, null);
-        g.dispose();
+        // Preserve type if the jpeg writer takes it
+        int type = PixelConverter.jpegType(originalImage);
+        BufferedImage resizedImage = ImagePool.shared().acquire(type, IMG_WIDTH, IMG_HEIGHT);
+        Resampler.resizeReduced(originalImage, resizedImage, ResampleFilter.LANCZOS3, orientation);
         
         return resizedImage;
     }
     
-    private static BufferedImage getScaledImage(BufferedImage src, int w, int h){
-        int original_width = src.getWidth();
-        int original_height = src.getHeight();
+    static BufferedImage getScaledImage(BufferedImage src, int w, int h){
+        return getScaledImage(src, w, h, Orientation.NORMAL);
+    }
+    
+    // w x h bounds the upright image
+    static BufferedImage getScaledImage(BufferedImage src, int w, int h, Orientation orientation){
+        Dimension upright = orientation.turn(src.getWidth(), src.getHeight());
+        int original_width = upright.width;
+        int original_height = upright.height;
         int bound_width = w;
         int bound_height = h;
         int new_width = original_width;
         int new_height = original_height;
-
+        
         // first check if we need to scale width
         if (original_width > bound_width) {
             //scale width to fit
@@ -113,7 +145,7 @@ public class ImageScaleByPercent {
             //scale height to maintain aspect ratio
             new_height = (new_width * original_height) / original_width;
         }
-
+        
         // then check if we need to scale even with the new height
         if (new_height > bound_height) {
             //scale height to fit instead
@@ -121,17 +153,13 @@ public class ImageScaleByPercent {
             //scale width to maintain aspect ratio
             new_width = (new_height * original_width) / original_height;
         }
-
-        // Preserve the type if we can
-        int type = src.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : src.getType();
         
-        BufferedImage resizedImg = new BufferedImage(new_width, new_height,type);
+        // Preserve the type if the jpeg writer takes it
+        int type = PixelConverter.jpegType(src);
+        
+        BufferedImage resizedImg = ImagePool.shared().acquire(type, new_width, new_height);
         
-        Graphics2D g2 = resizedImg.createGraphics();
-        g2.setBackground(Color.WHITE);
-        g2.clearRect(0,0,new_width, new_height);
-        g2.drawImage(src, 0, 0, new_width, new_height, null);
-        g2.dispose();
+        Resampler.resizeReduced(src, resizedImg, ResampleFilter.LANCZOS3, orientation);
         return resizedImg;
     }
     
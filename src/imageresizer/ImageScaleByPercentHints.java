@@ -31,8 +31,8 @@ public class ImageScaleByPercentHints {
         double percent_200 = 2;
         double percent_400 = 4;
         
-        BufferedImage originalImage = ImageIO.read(originalFile);
-        int type = originalImage.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : originalImage.getType();
+        BufferedImage originalImage = ReadImage.decodeFile(originalFile).getImage();
+        int type = PixelConverter.jpegType(originalImage);
         
         printDimensionsAndFileSize(originalImage, originalFile);
         
@@ -41,57 +41,62 @@ public class ImageScaleByPercentHints {
         ImageIO.write(resizeImageBmp, "jpg", plainFile50);
         
         printDimensionsAndFileSize(resizeImageBmp, plainFile50);
+        ImagePool.shared().release(resizeImageBmp);
         
         // 25%
         resizeImageBmp = resizeImage(originalImage, type, percent_25);
         ImageIO.write(resizeImageBmp, "jpg", plainFile25);
         
         printDimensionsAndFileSize(resizeImageBmp, plainFile25);
+        ImagePool.shared().release(resizeImageBmp);
         
         // 2X
         resizeImageBmp = resizeImage(originalImage, type, percent_200);
         ImageIO.write(resizeImageBmp, "jpg", plainFile2x);
         
         printDimensionsAndFileSize(resizeImageBmp, plainFile2x);
+        ImagePool.shared().release(resizeImageBmp);
         
         // 4X
         resizeImageBmp = resizeImage(originalImage, type, percent_400);
         ImageIO.write(resizeImageBmp, "jpg", plainFile4x);
         
         printDimensionsAndFileSize(resizeImageBmp, plainFile4x);
-        
+        ImagePool.shared().release(resizeImageBmp);
+
 //        resizeImageBmp = resizeImageWithHint(originalImage, type);
 //        ImageIO.write(resizeImageBmp, "jpg", hintedFile);
 //        
 //        printDimensionsAndFileSize(resizeImageBmp, plainFile);
     }
     
-    private static BufferedImage resizeImage(BufferedImage originalImage, int type, double percent) {
+    static BufferedImage resizeImage(BufferedImage originalImage, int type, double percent) {
         int IMG_WIDTH = (int)(originalImage.getWidth() * percent);
         int IMG_HEIGHT = (int)(originalImage.getHeight() * percent);
         
-        BufferedImage resizedImage = new BufferedImage(IMG_WIDTH, IMG_HEIGHT, type);
-        Graphics2D g = resizedImage.createGraphics();
-        g.drawImage(originalImage, 0, 0, IMG_WIDTH, IMG_HEIGHT, null);
-        g.dispose();
+        // From the ImagePool, release it when done
+        BufferedImage resizedImage = ImagePool.shared().acquire(type, IMG_WIDTH, IMG_HEIGHT);
+        Resampler.resizeReduced(originalImage, resizedImage, ResampleFilter.LANCZOS3);
         
         return resizedImage;
     }
     
-    private static BufferedImage resizeImageWithHint(BufferedImage originalImage, int type) {
+    static BufferedImage resizeImageWithHint(BufferedImage originalImage, int type) {
         int IMG_WIDTH = 640;
         int IMG_HEIGHT = 512;
         
         BufferedImage resizedImage = new BufferedImage(IMG_WIDTH, IMG_HEIGHT, type);
         Graphics2D g = resizedImage.createGraphics();
-        g.drawImage(originalImage, 0, 0, IMG_WIDTH, IMG_HEIGHT, null);
-        g.dispose();
+        // Hints only apply to drawing done after they are set
         g.setComposite(AlphaComposite.Src);
         
         g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
         g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         
+        g.drawImage(originalImage, 0, 0, IMG_WIDTH, IMG_HEIGHT, null);
+        g.dispose();
+        
         return resizedImage;
     }
     
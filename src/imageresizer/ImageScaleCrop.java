@@ -5,30 +5,25 @@
  */
 package imageresizer;
 
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
+import java.awt.geom.Rectangle2D;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javafx.application.Application;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Bounds;
-import javafx.geometry.Rectangle2D;
 import javafx.scene.Group;
 import javafx.scene.Scene;
-import javafx.scene.SnapshotParameters;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.image.WritableImage;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.paint.Color;
@@ -37,8 +32,6 @@ import javafx.scene.shape.StrokeLineCap;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
-import javax.imageio.ImageIO;
-
 
 /**
  * Allows user to crop an image for resizing.
@@ -46,14 +39,37 @@ import javax.imageio.ImageIO;
  * Load image, provide rectangle for rubberband selection. 
  * Press right mouse button for "crop" context menu which then crops the image 
  * at the selection rectangle and saves it as jpg.
+ * 
+ * The image is shown at no more than DISPLAY_SIZE pixels a side, but the
+ * crop is taken from the file at full resolution: the selection is mapped
+ * to source pixels and only that region is decoded, see ImageCropper.
+ * "Crop and resize" scales the region to fit RESIZE_WIDTH x RESIZE_HEIGHT
+ * in the same pass. Both run off the FX thread.
  */
 public class ImageScaleCrop extends Application {
 
+    // Largest side of the image on screen
+    private static final int DISPLAY_SIZE = 2048;
+    // Box "Crop and resize" fits the crop in
+    private static final int RESIZE_WIDTH = 1024;
+    private static final int RESIZE_HEIGHT = 768;
+
     RubberBandSelection rubberBandSelection;
     ImageView imageView;
 
     Stage primaryStage;
 
+    File originalFile;
+    // size of the file, the view can be smaller
+    ImageProbe originalProbe;
+
+    private final ImageCropper cropper = new ImageCropper();
+    private final ExecutorService cropThread = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "crop");
+        t.setDaemon(true);
+        return t;
+    });
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -73,15 +89,16 @@ public class ImageScaleCrop extends Application {
         // image layer: a group of images
         Group imageLayer = new Group(); 
 
-        // load the image
+        // load the image, no bigger than the display needs
+        originalFile = new File("C:\\Users\\gtanner\\Desktop\\images\\frog.jpg");
         try {
-            File originalFile = new File("C:\\Users\\gtanner\\Desktop\\images\\frog.jpg");
-            Image image = new Image(new FileInputStream(originalFile));
-            // the container for the image as a javafx node
-            imageView = new ImageView( image);
-        } catch(FileNotFoundException fnf) {
-                    Logger.getLogger(ImageScaleDragDrop.class.getName()).log(Level.SEVERE, null, fnf);
+            originalProbe = ImageProbe.probe(originalFile);
+        } catch(IOException ioe) {
+            Logger.getLogger(ImageScaleCrop.class.getName()).log(Level.SEVERE, null, ioe);
         }
+        Image image = new Image(originalFile.toURI().toString(), DISPLAY_SIZE, DISPLAY_SIZE, true, true);
+        // the container for the image as a javafx node
+        imageView = new ImageView( image);
         
         // add image to layer
         imageLayer.getChildren().add( imageView);
@@ -109,12 +126,20 @@ public class ImageScaleCrop extends Application {
                 System.out.println( "Selected area: " + selectionBounds);
 
                 // crop the image
-                crop( selectionBounds);
+                crop( selectionBounds, false);
 
             }
         });
         contextMenu.getItems().add( cropMenuItem);
 
+        MenuItem cropResizeMenuItem = new MenuItem("Crop and resize");
+        cropResizeMenuItem.setOnAction(new EventHandler<ActionEvent>() {
+            public void handle(ActionEvent e) {
+                crop( rubberBandSelection.getBounds(), true);
+            }
+        });
+        contextMenu.getItems().add( cropResizeMenuItem);
+
         // set context menu on image layer
         imageLayer.setOnMousePressed(new EventHandler<MouseEvent>() {
             @Override
@@ -129,7 +154,18 @@ public class ImageScaleCrop extends Application {
         primaryStage.show();
     }
 
-    private void crop( Bounds bounds) {
+    private void crop( Bounds bounds, boolean resize) {
+
+        if (originalProbe == null)
+            return;
+
+        // selection in the view to pixels of the file
+        Image shown = imageView.getImage();
+        java.awt.Rectangle region = ImageCropper.toSourcePixels(
+                new Rectangle2D.Double(bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), bounds.getHeight()),
+                shown.getWidth(), shown.getHeight(), originalProbe.getWidth(), originalProbe.getHeight());
+        if (region.isEmpty())
+            return;
 
         FileChooser fileChooser = new FileChooser();
         fileChooser.setTitle("Save Image");
@@ -138,45 +174,19 @@ public class ImageScaleCrop extends Application {
         if (file == null)
             return;
 
-        int width = (int) bounds.getWidth();
-        int height = (int) bounds.getHeight();
-
-        SnapshotParameters parameters = new SnapshotParameters();
-        parameters.setFill(Color.TRANSPARENT);
-        parameters.setViewport(new Rectangle2D( bounds.getMinX(), bounds.getMinY(), width, height));
-
-        WritableImage wi = new WritableImage( width, height);
-        imageView.snapshot(parameters, wi);
-
-        // save image 
-        // !!! has bug because of transparency (use approach below) !!!
-        // --------------------------------
-//        try {
-//          ImageIO.write(SwingFXUtils.fromFXImage( wi, null), "jpg", file);
-//      } catch (IOException e) {
-//          e.printStackTrace();
-//      }
-
-
-        // save image (without alpha)
-        // --------------------------------
-        BufferedImage bufImageARGB = SwingFXUtils.fromFXImage(wi, null);
-        BufferedImage bufImageRGB = new BufferedImage(bufImageARGB.getWidth(), bufImageARGB.getHeight(), BufferedImage.OPAQUE);
-
-        Graphics2D graphics = bufImageRGB.createGraphics();
-        graphics.drawImage(bufImageARGB, 0, 0, null);
-
-        try {
-
-            ImageIO.write(bufImageRGB, "jpg", file); 
-
-            System.out.println( "Image saved to " + file.getAbsolutePath());
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        graphics.dispose();
+        // decoding the region takes a while for big photos
+        cropThread.execute(() -> {
+            try {
+                if (resize) {
+                    cropper.cropAndResize(originalFile, region, file, RESIZE_WIDTH, RESIZE_HEIGHT);
+                } else {
+                    cropper.crop(originalFile, region, file);
+                }
+                System.out.println( "Pixels " + region + " saved to " + file.getAbsolutePath());
+            } catch (IOException | RuntimeException e) {
+                Logger.getLogger(ImageScaleCrop.class.getName()).log(Level.SEVERE, "Could not crop " + originalFile, e);
+            }
+        });
 
     }
 
@@ -5,35 +5,76 @@
  */
 package imageresizer;
 
+import java.awt.Dimension;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.image.PixelReader;
 import javafx.scene.input.DragEvent;
 import javafx.scene.input.Dragboard;
 import javafx.scene.input.TransferMode;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 
 /**
- * Creates a window to allow user to drag and drop an image to be resized
+ * Creates a window to allow user to drag and drop images to be resized.
+ * 
+ * Any number of images or folders can be dropped. Each image is resized
+ * on a background thread to a jpeg no bigger than 500KB, in a resized
+ * folder next to it, while the list at the bottom shows how far each file
+ * has got. The FX thread never decodes: the preview is a JavaFX Image
+ * loaded in the background at about the window's size, which is much
+ * quicker than a full decode, and it is swapped for the resized file once
+ * that is written. Click a file in the list to preview it. Each resize is
+ * also split into bands of rows across the cores (see
+ * Resampler.resizeInBands), so a single huge image doesn't leave all but
+ * one of them idle.
  * 
  * @author gtanner
  */
 public class ImageScaleDragDrop extends Application {
     
+    private static final Logger LOG = Logger.getLogger(ImageScaleDragDrop.class.getName());
+    
+    // Size the previews are decoded at
+    private static final int PREVIEW_WIDTH = 800;
+    private static final int PREVIEW_HEIGHT = 450;
+    
+    private final ImageResizer resizer = new ImageResizer();
+    
+    // One resize per core; daemon threads so closing the window ends the app
+    private final ExecutorService workers = Executors.newFixedThreadPool(resizer.getConcurrency(), r -> {
+        Thread t = new Thread(r, "drag-drop-resize");
+        t.setDaemon(true);
+        return t;
+    });
+    
     ImageView imageView;
     StackPane contentPane;
     BorderPane layout;
+    VBox fileList;
+    
+    // The row whose image is in the preview
+    private FileRow previewed;
     
     public static void main(String[] args) {
         launch(args);
@@ -41,70 +82,75 @@ public class ImageScaleDragDrop extends Application {
     
     @Override
     public void start(Stage primaryStage) {
+        resizer.setParallelBands(true);
         
         layout = new BorderPane();
         contentPane = new StackPane();
         
+        imageView = new ImageView();
+        imageView.setPreserveRatio(true);
+        contentPane.getChildren().addAll(new Label("Drop images or folders here"), imageView);
+        
         contentPane.setOnDragOver((final DragEvent event) -> {
             mouseDragOver(event);
         });
         
         contentPane.setOnDragDropped((final DragEvent event) -> {
-           mouseDragDropped(event); 
+           mouseDragDropped(event);
         });
         
         contentPane.setOnDragExited((final DragEvent event)-> {
             contentPane.setStyle("-fx-border-color: #C6C6C6");
         });
         
+        fileList = new VBox(4);
+        fileList.setPadding(new Insets(4));
+        ScrollPane files = new ScrollPane(fileList);
+        files.setFitToWidth(true);
+        files.setPrefHeight(140);
+        
         layout.setCenter(contentPane);
+        layout.setBottom(files);
         
         Scene scene = new Scene(layout, 800, 600, Color.WHITE);
         primaryStage.setTitle("Image Resizer");
         primaryStage.setScene(scene);
         primaryStage.show();
     }
-
-    private void addImage(Image image, StackPane pane) {
-        imageView = new ImageView();
-        imageView.setImage(image);
-        // Resizes the image in the view, but doesn't change the file at all.
-//        imageView.setFitWidth(350);
-//        imageView.setPreserveRatio(true);
-//        imageView.setSmooth(true);
-//        imageView.setCache(true);
-        pane.getChildren().add(imageView);
-        imageInfo(image);
+    
+    @Override
+    public void stop() {
+        workers.shutdownNow();
     }
     
-    private void imageInfo(Image image) {
+    // Shows the row's resized file if it is written, otherwise its source.
+    // JavaFX ignores EXIF, so a source is turned upright by the view; the
+    // resized file already is.
+    private void showPreview(FileRow row) {
+        previewed = row;
+        File file = row.output != null ? row.output : row.source;
+        Orientation orientation = row.output != null ? Orientation.NORMAL : row.orientation;
+        imageView.setScaleX(orientation.mirrored() ? -1 : 1);
+        imageView.setRotate(orientation.degrees());
         
-        PixelReader reader;
-        
-        try {
-            // Get the pixel reader from the image
-            reader = image.getPixelReader();
-        } catch (NullPointerException npe) {
-            Logger.getLogger(ImageScaleDragDrop.class.getName()).log(Level.SEVERE, null, npe);
-        }
-        
-        // Get Image properties
-        int width = (int)image.getWidth();
-        int height = (int)image.getHeight();
-        
-        // Write the pixel properties
-        System.out.println("Image width: " + width);
-        System.out.println("Image height: " + height);
+        // decoded at about the preview's size on a JavaFX background thread,
+        // the view shows it when it is loaded
+        Dimension box = orientation.turn(PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        Image preview = new Image(file.toURI().toString(), box.width, box.height, true, true, true);
+        preview.errorProperty().addListener((observable, wasError, isError) -> {
+            if(isError) {
+                LOG.log(Level.WARNING, "Could not preview " + file, preview.getException());
+            }
+        });
+        imageView.setImage(preview);
     }
     
     private void mouseDragOver(final DragEvent event) {
         final Dragboard db = event.getDragboard();
         
-        final boolean isAccepted = db.getFiles().get(0).getName().toLowerCase().endsWith(".png")
-                || db.getFiles().get(0).getName().toLowerCase().endsWith(".jpeg")
-                || db.getFiles().get(0).getName().toLowerCase().endsWith(".jpg")
-                || db.getFiles().get(0).getName().toLowerCase().endsWith(".gif");
         if(db.hasFiles()) {
+            final boolean isAccepted = db.getFiles().stream()
+                    .anyMatch(f -> f.isDirectory() || ImageResizer.isImageFile(f.toPath()));
             if(isAccepted) {
                 contentPane.setStyle("-fx-border-color:red;"
                             + "-fx-border-width: 5;"
@@ -114,46 +160,128 @@ public class ImageScaleDragDrop extends Application {
             } else {
                 event.consume();
             }
-        }        
+        }
     }
-
+    
     private void mouseDragDropped(final DragEvent event) {
         final Dragboard db = event.getDragboard();
         
         boolean success = false;
         if(db.hasFiles()) {
-            success = true;
-            // Only get the first file from the list
-            final File file = db.getFiles().get(0);
-            
-            Platform.runLater(() -> {
-                System.out.println("File location: " + file.getAbsolutePath());
-                System.out.println("File size: " + file.length());
-                
+            FileRow last = null;
+            for(File file : imageFiles(db.getFiles())) {
+                FileRow row = new FileRow(file);
+                fileList.getChildren().add(row.pane);
+                workers.execute(() -> resize(row));
+                last = row;
+            }
+            if(last != null) {
+                success = true;
+                showPreview(last);
+            }
+        }
+        event.setDropCompleted(success);
+        event.consume();
+    }
+    
+    // The dropped images, and the images directly inside dropped folders
+    private static List<File> imageFiles(List<File> dropped) {
+        List<File> images = new ArrayList<>();
+        for(File file : dropped) {
+            Path path = file.toPath();
+            if(file.isDirectory()) {
                 try {
-                    if(!contentPane.getChildren().isEmpty()) {
-                        contentPane.getChildren().remove(0);
+                    for(Path p : ImageResizer.listImages(path)) {
+                        images.add(p.toFile());
                     }
-                    
-                    Image image = new Image(new FileInputStream(file.getAbsolutePath()));
-                    
-                    // Display the current image info
-                    this.imageInfo(image);
-                    addImage(image, contentPane);
-                    
-                    // Create a buffered image from the original image
-                    // Create a resized buffered image
-                    // Resize
-                    // Save as PNG
-                    //File newFile = new File("resizedImage.png");
-                    //  ImageIO.write(bufferedImage, "png", newFile);
-                    // Add the image
-                    //addImage(resizedImage);
-                    System.out.println("File size: " + (file.length()));
-                } catch(FileNotFoundException fnf) {
-                    Logger.getLogger(ImageScaleDragDrop.class.getName()).log(Level.SEVERE, null, fnf);
+                } catch(IOException ioe) {
+                    LOG.log(Level.SEVERE, null, ioe);
+                }
+            } else if(ImageResizer.isImageFile(path)) {
+                images.add(file);
+            }
+        }
+        return images;
+    }
+    
+    // Runs on a worker thread
+    private void resize(FileRow row) {
+        long start = System.nanoTime();
+        RenditionSpec spec = resizer.widthSpec(Integer.MAX_VALUE);
+        MemoryBudget budget = MemoryBudget.shared();
+        long bytes = -1;
+        try {
+            // headers only, for the memory estimate and the row
+            ImageProbe probe = ImageProbe.probe(row.source);
+            LOG.log(Level.FINE, "{0}", probe);
+            Orientation orientation = Orientation.fromExif(probe.getOrientation());
+            if(orientation != Orientation.NORMAL) {
+                Platform.runLater(() -> {
+                    row.orientation = orientation;
+                    if(previewed == row && row.output == null) {
+                        showPreview(row);
+                    }
+                });
+            }
+            long peak = resizer.peakBytes(probe, spec);
+            row.update(ProgressBar.INDETERMINATE_PROGRESS, "waiting for memory");
+            budget.acquire(peak);
+            bytes = peak;
+            
+            row.update(ProgressBar.INDETERMINATE_PROGRESS, "resizing " + probe.getWidth() + "x" + probe.getHeight());
+            File output = resizer.resizeImage(row.source, Integer.MAX_VALUE);
+            String done = String.format("%dKB in %.1fs", output.length() / 1024, (System.nanoTime() - start) / 1e9);
+            LOG.log(Level.FINE, "Resized {0} to {1}, {2}", new Object[] {row.source, output, done});
+            
+            Platform.runLater(() -> {
+                row.output = output;
+                row.show(1, done);
+                if(previewed == row) {
+                    showPreview(row);
                 }
             });
+        } catch(IOException | RuntimeException e) {
+            LOG.log(Level.SEVERE, "Could not resize " + row.source, e);
+            row.update(0, "failed: " + e.getMessage());
+        } catch(InterruptedException e) {
+            // the window was closed
+        } finally {
+            if(bytes >= 0) {
+                budget.release(bytes);
+            }
         }
-    } 
+    }
+    
+    // A dropped file in the list, with its progress
+    private final class FileRow {
+        final File source;
+        // written resized file, set on the FX thread
+        File output;
+        // of the source, from its EXIF data, set on the FX thread
+        Orientation orientation = Orientation.NORMAL;
+        
+        final ProgressBar progress = new ProgressBar(0);
+        final Label status = new Label("queued");
+        final HBox pane;
+        
+        FileRow(File source) {
+            this.source = source;
+            Label name = new Label(source.getName());
+            name.setPrefWidth(240);
+            progress.setPrefWidth(200);
+            pane = new HBox(8, name, progress, status);
+            pane.setAlignment(Pos.CENTER_LEFT);
+            pane.setOnMouseClicked(e -> showPreview(this));
+        }
+        
+        // From any thread
+        void update(double value, String text) {
+            Platform.runLater(() -> show(value, text));
+        }
+        
+        void show(double value, String text) {
+            progress.setProgress(value);
+            status.setText(text);
+        }
+    }
 }
@@ -0,0 +1,279 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Writes a jpeg no bigger than a given number of bytes.
+ * 
+ * The compression quality is searched for between a lower bound that fits
+ * and an upper bound that doesn't. The first guess comes from the estimate
+ * in ImageScaleByPercent:
+ *  uncompressed bytes = (number of pixels) * (bit depth) / 8
+ * and the bits per pixel a typical photo keeps at each quality. After
+ * the first encode the model is corrected by how far off it was, which is
+ * usually close enough to land inside the target on the second or third try.
+ * 
+ * Only when the lowest quality is still too big is the image scaled down.
+ * 
+ * Trial encodes go to in-memory buffers that are reused between trials and
+ * between images, so an instance is not thread safe. Use one per thread.
+ * 
+ * @author gtanner
+ */
+public class JpegSizeEncoder {
+    
+    // The README promises files no bigger than 500KB
+    public static final long DEFAULT_MAX_BYTES = 500 * 1024;
+    
+    // Lowest quality tried before giving up and scaling the image down
+    private static final float MIN_QUALITY = 0.05f;
+    private static final float MAX_QUALITY = 0.95f;
+    
+    // Stop searching when a fitting encode is at least this full...
+    private static final double GOOD_ENOUGH = 0.90;
+    // ...or the next guess is this close to a quality already tried
+    private static final float QUALITY_STEP = 0.02f;
+    // Guesses aim between GOOD_ENOUGH and the limit. Aiming at GOOD_ENOUGH
+    // itself creeps up on it from below without ever reaching it.
+    private static final double AIM = 0.95;
+    private static final int MAX_TRIALS = 8;
+    
+    // Bits per pixel of a typical photo at each quality (IJG tables, 4:2:0).
+    // Used to turn the size target into a first guess.
+    private static final float[] MODEL_QUALITY = {0.05f, 0.10f, 0.25f, 0.50f, 0.75f, 0.85f, 0.90f, 0.95f};
+    private static final float[] MODEL_BPP     = {0.25f, 0.40f, 0.75f, 1.20f, 1.90f, 2.60f, 3.40f, 5.00f};
+    
+    private final ImageWriter writer;
+    private ByteArrayOutputStream trial = new ByteArrayOutputStream(64 * 1024);
+    private ByteArrayOutputStream best = new ByteArrayOutputStream(64 * 1024);
+    private int encodes;
+    
+    public JpegSizeEncoder() {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+        if(!writers.hasNext()) {
+            throw new IllegalStateException("No jpeg writer available");
+        }
+        writer = writers.next();
+    }
+    
+    /**
+     * Writes the image as a jpeg no bigger than maxBytes.
+     * 
+     * @param image any type, others than the ones the jpeg writer takes are
+     *        converted first, see PixelConverter
+     * @param maxBytes
+     * @param file
+     * @return the image that was written, smaller than the input if quality
+     *         alone couldn't get under maxBytes. A converted or smaller image
+     *         comes from the ImagePool.
+     */
+    public BufferedImage write(BufferedImage image, long maxBytes, File file) throws IOException {
+        BufferedImage written = encode(image, maxBytes);
+        try(OutputStream out = new FileOutputStream(file)) {
+            best.writeTo(out);
+        } catch(IOException e) {
+            // the caller never sees it to release it
+            if(written != image) {
+                ImagePool.shared().release(written);
+            }
+            throw e;
+        }
+        return written;
+    }
+    
+    /**
+     * Encodes the image into the internal buffer, see size() and writeTo().
+     * 
+     * @param image
+     * @param maxBytes
+     * @return the image that was encoded
+     */
+    public BufferedImage encode(BufferedImage image, long maxBytes) throws IOException {
+        if(maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        encodes = 0;
+        
+        BufferedImage current = image;
+        if(!PixelConverter.isJpegSafe(image)) {
+            // alpha or custom types come out with the wrong colors
+            current = ImagePool.shared().acquire(PixelConverter.jpegType(image), image.getWidth(), image.getHeight());
+            PixelConverter.convert(image, current);
+        }
+        while(true) {
+            if(searchQuality(current, maxBytes)) {
+                return current;
+            }
+            
+            // Even the lowest quality is too big, so reduce the pixel count.
+            // Size goes roughly with the number of pixels, so scale each
+            // side by the square root of how far over we are.
+            double factor = Math.sqrt((double)maxBytes / trial.size()) * 0.95;
+            int w = (int)(current.getWidth() * factor);
+            int h = (int)(current.getHeight() * factor);
+            if(w < 1 || h < 1 || (w == current.getWidth() && h == current.getHeight())) {
+                throw new IOException("Cannot encode under " + maxBytes + " bytes");
+            }
+            BufferedImage smaller = ImageResizer.scale(current, w, h);
+            if(current != image) {
+                ImagePool.shared().release(current);
+            }
+            current = smaller;
+        }
+    }
+    
+    /**
+     * @return bytes in the last successful encode
+     */
+    public int size() {
+        return best.size();
+    }
+    
+    public void writeTo(OutputStream out) throws IOException {
+        best.writeTo(out);
+    }
+    
+    /**
+     * @return the last successful encode, copied out of the buffer
+     */
+    public byte[] toByteArray() {
+        return best.toByteArray();
+    }
+    
+    /**
+     * @return number of trial encodes used by the last call to encode()
+     */
+    public int getEncodes() {
+        return encodes;
+    }
+    
+    // Searches quality for the image. On success the result is in best.
+    private boolean searchQuality(BufferedImage image, long maxBytes) throws IOException {
+        long pixels = (long)image.getWidth() * image.getHeight();
+        // The model is for 24 bit color, a gray image compresses to about a third
+        int bitDepth = image.getColorModel().getNumColorComponents() * 8;
+        double targetBpp = maxBytes * 8.0 / pixels * 24 / bitDepth;
+        
+        // Known fitting and too-big qualities
+        float low = 0;
+        float high = Float.MAX_VALUE;
+        boolean found = false;
+        
+        // Aim a little under the target so the first guess usually fits
+        float quality = qualityForBpp(targetBpp * AIM);
+        
+        for(int i = 0; i < MAX_TRIALS; i++) {
+            int size = encodeTrial(image, quality);
+            
+            if(size <= maxBytes) {
+                swapBest();
+                found = true;
+                low = quality;
+                if(size >= maxBytes * GOOD_ENOUGH || quality >= MAX_QUALITY) {
+                    break;
+                }
+            } else {
+                high = quality;
+                if(quality <= MIN_QUALITY) {
+                    break;
+                }
+            }
+            
+            // Correct the model by how far off it was for this image and
+            // guess again, at least QUALITY_STEP from the qualities tried
+            double error = (size * 8.0 / pixels * 24 / bitDepth) / bppForQuality(quality);
+            float next = qualityForBpp(targetBpp * AIM / error);
+            if(high == Float.MAX_VALUE) {
+                // Nothing too big yet, so low was the last try. A guess that
+                // close to it isn't worth another encode.
+                next = Math.min(next, MAX_QUALITY);
+                if(next < low + QUALITY_STEP) {
+                    break;
+                }
+            } else {
+                float floor = found ? low + QUALITY_STEP : MIN_QUALITY;
+                float ceiling = high - QUALITY_STEP;
+                if(ceiling < floor) {
+                    if(found) {
+                        break;
+                    }
+                    // the lowest quality decides whether to scale down
+                    next = MIN_QUALITY;
+                } else if(next < floor || next > ceiling) {
+                    next = Math.max((low + high) / 2, floor);
+                }
+            }
+            quality = next;
+        }
+        
+        return found;
+    }
+    
+    private int encodeTrial(BufferedImage image, float quality) throws IOException {
+        encodes++;
+        trial.reset();
+        
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        
+        try(ImageOutputStream ios = new MemoryCacheImageOutputStream(trial)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+        }
+        return trial.size();
+    }
+    
+    private void swapBest() {
+        ByteArrayOutputStream swap = best;
+        best = trial;
+        trial = swap;
+    }
+    
+    // Linear interpolation in the model table
+    static double bppForQuality(float quality) {
+        if(quality <= MODEL_QUALITY[0]) {
+            return MODEL_BPP[0];
+        }
+        for(int i = 1; i < MODEL_QUALITY.length; i++) {
+            if(quality <= MODEL_QUALITY[i]) {
+                float t = (quality - MODEL_QUALITY[i - 1]) / (MODEL_QUALITY[i] - MODEL_QUALITY[i - 1]);
+                return MODEL_BPP[i - 1] + t * (MODEL_BPP[i] - MODEL_BPP[i - 1]);
+            }
+        }
+        return MODEL_BPP[MODEL_BPP.length - 1];
+    }
+    
+    static float qualityForBpp(double bpp) {
+        if(bpp <= MODEL_BPP[0]) {
+            return MIN_QUALITY;
+        }
+        for(int i = 1; i < MODEL_BPP.length; i++) {
+            if(bpp <= MODEL_BPP[i]) {
+                double t = (bpp - MODEL_BPP[i - 1]) / (MODEL_BPP[i] - MODEL_BPP[i - 1]);
+                return (float)(MODEL_QUALITY[i - 1] + t * (MODEL_QUALITY[i] - MODEL_QUALITY[i - 1]));
+            }
+        }
+        return MAX_QUALITY;
+    }
+    
+}
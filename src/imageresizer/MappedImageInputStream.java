@@ -0,0 +1,171 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream over a ByteBuffer, normally a file mapped into memory.
+ * 
+ * ImageIO.createImageInputStream(File) gives a FileImageInputStream, which
+ * makes a RandomAccessFile read for every buffer the decoder asks for, and
+ * ImageIO.read(InputStream) copies the whole stream into a temp file first
+ * unless ImageIO.setUseCache(false) was called. Here the decoder copies
+ * straight out of the page cache: no read calls, no temp file and no
+ * second in-memory copy, as if the cache were off. Seeking is free.
+ * 
+ * Files under MAP_THRESHOLD are read into the heap instead, since mapping
+ * has a fixed cost that a small read doesn't. A mapping is released when
+ * its buffer is garbage collected, not when the stream is closed.
+ * 
+ * @author gtanner
+ */
+public class MappedImageInputStream extends ImageInputStreamImpl {
+    
+    // Files smaller than this are read rather than mapped
+    static final int MAP_THRESHOLD = 64 * 1024;
+    
+    private ByteBuffer buffer;
+    private final int length;
+    
+    /**
+     * @param buffer the encoded image, from its position to its limit. The
+     *        buffer itself isn't changed.
+     */
+    public MappedImageInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+        length = this.buffer.remaining();
+    }
+    
+    /**
+     * Opens a file for decoding, mapped if it is big enough.
+     * 
+     * @param file
+     * @return a stream over the file, a FileImageInputStream for files too
+     *         big to map in one piece
+     */
+    public static ImageInputStream open(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) {
+                return new FileImageInputStream(file);
+            }
+            return new MappedImageInputStream(map(channel));
+        }
+    }
+    
+    /**
+     * Maps a file and loads all of it, so the disk reads happen now rather
+     * than as page faults in the decoder.
+     * 
+     * @param path
+     * @return the contents of the file
+     */
+    public static ByteBuffer load(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too big to map: " + channel.size() + " bytes");
+            }
+            ByteBuffer buffer = map(channel);
+            if(buffer instanceof MappedByteBuffer) {
+                ((MappedByteBuffer)buffer).load();
+            }
+            return buffer;
+        }
+    }
+    
+    // The mapping stays valid after the channel is closed
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        int size = (int)channel.size();
+        if(size >= MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // read it all
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if(streamPos >= length) {
+            return -1;
+        }
+        return buffer.get((int)streamPos++) & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if(off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if(len == 0) {
+            return 0;
+        }
+        if(streamPos >= length) {
+            return -1;
+        }
+        
+        int n = (int)Math.min(len, length - streamPos);
+        buffer.position((int)streamPos);
+        buffer.get(b, off, n);
+        streamPos += n;
+        return n;
+    }
+    
+    /**
+     * The bytes from the stream position on, without copying them, for
+     * decoders that want the whole image at once.
+     * 
+     * @return a read only view positioned at the stream position
+     */
+    ByteBuffer remaining() throws IOException {
+        checkClosed();
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position((int)Math.min(streamPos, length));
+        return view;
+    }
+    
+    @Override
+    public long length() {
+        return length;
+    }
+    
+    // The whole image is in memory, so any position can be seeked back to
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+    
+    @Override
+    public boolean isCachedMemory() {
+        return true;
+    }
+    
+    // ImageIO.read() closes its stream, so closing twice is allowed
+    @Override
+    public void close() throws IOException {
+        if(buffer != null) {
+            super.close();
+            buffer = null;
+        }
+    }
+}
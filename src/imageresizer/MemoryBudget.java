@@ -0,0 +1,120 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+/**
+ * Admits resizes against a budget of heap bytes, a weighted semaphore.
+ * 
+ * Each resize asks for its estimated peak bytes before decoding, see
+ * ImageResizer.peakBytes(), and gives them back when its output is written.
+ * Small images run as many at a time as there are threads, while a few
+ * 100 megapixel images wait for each other instead of running out of heap
+ * together. A resize bigger than the whole budget is admitted once nothing
+ * else is running, so it runs alone rather than never.
+ * 
+ * Waiting resizes aren't queued in order: when bytes are released, any
+ * waiter that now fits goes ahead. A batch sorted biggest first puts the
+ * big ones at the front anyway, and small ones filling the gaps keep the
+ * threads busy.
+ * 
+ * @author gtanner
+ */
+public class MemoryBudget {
+    
+    // Half the heap: ImagePool keeps up to an eighth, and the rest is for
+    // the decoders and everything else
+    private static final MemoryBudget SHARED = new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+    
+    private final long capacity;
+    private long admitted;
+    private long queued;
+    private long peakAdmitted;
+    private long peakQueued;
+    private long admissions;
+    private long waits;
+    private long waitNanos;
+    
+    /**
+     * @param capacity bytes that can be admitted at once
+     */
+    public MemoryBudget(long capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+    
+    /**
+     * @return the budget shared by the batch resizers, half the heap
+     */
+    public static MemoryBudget shared() {
+        return SHARED;
+    }
+    
+    /**
+     * Waits until the bytes fit in the budget and takes them. Give them
+     * back with release().
+     * 
+     * @param bytes estimated peak bytes of one resize
+     * @throws InterruptedException if interrupted while waiting, nothing is
+     *         taken then
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if(admitted > 0 && admitted + bytes > capacity) {
+            long start = System.nanoTime();
+            waits++;
+            queued += bytes;
+            peakQueued = Math.max(peakQueued, queued);
+            try {
+                do {
+                    wait();
+                } while(admitted > 0 && admitted + bytes > capacity);
+            } finally {
+                queued -= bytes;
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+        admitted += bytes;
+        admissions++;
+        peakAdmitted = Math.max(peakAdmitted, admitted);
+    }
+    
+    /**
+     * @param bytes as given to acquire()
+     */
+    public synchronized void release(long bytes) {
+        admitted -= bytes;
+        notifyAll();
+    }
+    
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    // Bytes of the resizes running now
+    public synchronized long getAdmittedBytes() {
+        return admitted;
+    }
+    
+    // Bytes of the resizes waiting to be admitted
+    public synchronized long getQueuedBytes() {
+        return queued;
+    }
+    
+    public synchronized long getPeakAdmittedBytes() {
+        return peakAdmitted;
+    }
+    
+    public synchronized long getPeakQueuedBytes() {
+        return peakQueued;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("Memory budget: %dMB admitted, %dMB queued of %dMB (peak %dMB admitted, %dMB queued),"
+                + " %d of %d resizes waited %.2fs",
+                admitted >> 20, queued >> 20, capacity >> 20, peakAdmitted >> 20, peakQueued >> 20,
+                waits, admissions, waitNanos / 1e9);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.Dimension;
+
+/**
+ * The eight EXIF orientations, in tag order 1 to 8: how the stored pixels
+ * turn to show the picture upright.
+ * 
+ * Cameras write the sensor's rows as they come and record how the camera
+ * was held, so a portrait photo is stored sideways. Resampler applies the
+ * orientation as it writes the destination: each resampled row of the
+ * stored image goes to a row, a reversed row or a column of the upright
+ * image, starting at rowStart() and moving step() array elements a pixel.
+ * There is no rotate pass and no second image.
+ * 
+ * @author gtanner
+ */
+public enum Orientation {
+    NORMAL(0, false),
+    MIRROR_HORIZONTAL(0, true),
+    ROTATE_180(180, false),
+    MIRROR_VERTICAL(180, true),
+    TRANSPOSE(270, true),
+    ROTATE_90(90, false),
+    TRANSVERSE(90, true),
+    ROTATE_270(270, false);
+    
+    private final int degrees;
+    private final boolean mirrored;
+    
+    private Orientation(int degrees, boolean mirrored) {
+        this.degrees = degrees;
+        this.mirrored = mirrored;
+    }
+    
+    /**
+     * @param tag value of the EXIF Orientation tag (0x0112)
+     * @return the orientation, NORMAL for values out of range
+     */
+    public static Orientation fromExif(int tag) {
+        Orientation[] all = values();
+        return tag >= 1 && tag <= all.length ? all[tag - 1] : NORMAL;
+    }
+    
+    /**
+     * @return the EXIF Orientation tag value, 1 to 8
+     */
+    public int exifTag() {
+        return ordinal() + 1;
+    }
+    
+    /**
+     * Clockwise rotation to apply after mirrored(), for viewers that turn
+     * the image as a whole.
+     */
+    public int degrees() {
+        return degrees;
+    }
+    
+    /**
+     * Whether the stored image is flipped left to right before rotating.
+     */
+    public boolean mirrored() {
+        return mirrored;
+    }
+    
+    /**
+     * True when stored rows become upright columns.
+     */
+    public boolean swapsAxes() {
+        return degrees == 90 || degrees == 270;
+    }
+    
+    /**
+     * The size of an image turned by this orientation. Applying it twice
+     * gives back the original size, so this also maps an upright size to
+     * the stored one.
+     * 
+     * @param width
+     * @param height
+     * @return the turned size
+     */
+    public Dimension turn(int width, int height) {
+        return swapsAxes() ? new Dimension(height, width) : new Dimension(width, height);
+    }
+    
+    /**
+     * Array index in the upright dst where stored row y begins.
+     * 
+     * @param dst the upright destination
+     * @param y row of the stored image
+     */
+    int rowStart(PixelLayout dst, int y) {
+        // size of the stored image
+        int w = swapsAxes() ? dst.height : dst.width;
+        int h = swapsAxes() ? dst.width : dst.height;
+        int s = dst.scanline;
+        int p = dst.pixelStride;
+        switch(this) {
+            case MIRROR_HORIZONTAL:
+                return dst.offset + y * s + (w - 1) * p;
+            case ROTATE_180:
+                return dst.offset + (h - 1 - y) * s + (w - 1) * p;
+            case MIRROR_VERTICAL:
+                return dst.offset + (h - 1 - y) * s;
+            case TRANSPOSE:
+                return dst.offset + y * p;
+            case ROTATE_90:
+                return dst.offset + (h - 1 - y) * p;
+            case TRANSVERSE:
+                return dst.offset + (w - 1) * s + (h - 1 - y) * p;
+            case ROTATE_270:
+                return dst.offset + (w - 1) * s + y * p;
+            default:
+                return dst.offset + y * s;
+        }
+    }
+    
+    /**
+     * Array elements in dst from one pixel of a stored row to the next.
+     */
+    int step(PixelLayout dst) {
+        switch(this) {
+            case MIRROR_HORIZONTAL:
+            case ROTATE_180:
+                return -dst.pixelStride;
+            case TRANSPOSE:
+            case ROTATE_90:
+                return dst.scanline;
+            case TRANSVERSE:
+            case ROTATE_270:
+                return -dst.scanline;
+            default:
+                return dst.pixelStride;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Converts between image types without Graphics2D.
+ * 
+ * Drawing an image onto one of another type with Graphics2D goes through
+ * Java2D's general blit loops, and for TYPE_CUSTOM images (16 bit png, some
+ * jpegs) through a very slow per-pixel path. Here every row goes through
+ * an int[] of 0xAARRGGBB read straight from the source array:
+ *  - 8 bit int packed and byte interleaved types, see PixelLayout
+ *  - indexed images (gif, palette png) through their color table
+ *  - 16 bit gray by dropping the low byte
+ *  - anything else through BufferedImage.getRGB() one row at a time
+ * and then written straight into the destination array. Transparent pixels
+ * written to an opaque type are composited onto white.
+ * 
+ * @author gtanner
+ */
+public class PixelConverter {
+    
+    /**
+     * @param image
+     * @return true if the jpeg writer takes the image as is
+     */
+    public static boolean isJpegSafe(BufferedImage image) {
+        int type = image.getType();
+        return type == BufferedImage.TYPE_INT_RGB
+                || type == BufferedImage.TYPE_INT_BGR
+                || type == BufferedImage.TYPE_3BYTE_BGR
+                || type == BufferedImage.TYPE_BYTE_GRAY;
+    }
+    
+    /**
+     * Type to use for a jpeg made from an image: the same type when that is
+     * safe, otherwise TYPE_BYTE_GRAY for gray images and TYPE_3BYTE_BGR for
+     * everything else.
+     * 
+     * @param image
+     * @return a BufferedImage.TYPE_ constant
+     */
+    public static int jpegType(BufferedImage image) {
+        if(isJpegSafe(image)) {
+            return image.getType();
+        }
+        ColorModel cm = image.getColorModel();
+        if(cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY && !(cm instanceof IndexColorModel)) {
+            return BufferedImage.TYPE_BYTE_GRAY;
+        }
+        return BufferedImage.TYPE_3BYTE_BGR;
+    }
+    
+    /**
+     * @param image
+     * @return the image itself if the jpeg writer takes it, else a
+     *         converted copy
+     */
+    public static BufferedImage toJpegSafe(BufferedImage image) {
+        return isJpegSafe(image) ? image : convert(image, jpegType(image));
+    }
+    
+    /**
+     * @param src
+     * @param type a BufferedImage.TYPE_ constant other than TYPE_CUSTOM
+     * @return a copy of src converted to type
+     */
+    public static BufferedImage convert(BufferedImage src, int type) {
+        BufferedImage dst = new BufferedImage(src.getWidth(), src.getHeight(), type);
+        convert(src, dst);
+        return dst;
+    }
+    
+    /**
+     * Copies src into dst, converting the pixels.
+     * 
+     * @param src
+     * @param dst at least as big as src
+     */
+    public static void convert(BufferedImage src, BufferedImage dst) {
+        long start = System.nanoTime();
+        copyPixels(src, dst);
+        ResizeMetrics.shared().record(ResizeMetrics.Operation.CONVERT, ResizeMetrics.typeOf(src),
+                System.nanoTime() - start, 0, (long)src.getWidth() * src.getHeight());
+    }
+    
+    private static void copyPixels(BufferedImage src, BufferedImage dst) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        if(dst.getWidth() < width || dst.getHeight() < height) {
+            throw new IllegalArgumentException("Destination is smaller than the source");
+        }
+        
+        PixelLayout in = PixelLayout.of(src);
+        PixelLayout out = PixelLayout.of(dst);
+        
+        // INT_ARGB is already what writeArgbRow takes, skip the row copy
+        if(in != null && in.isArgbInts() && in.alpha && !in.premultiplied && out != null) {
+            for(int y = 0; y < height; y++) {
+                out.writeArgbRow(y, in.ints, in.offset + y * in.scanline);
+            }
+            return;
+        }
+        
+        RowReader reader = reader(src, in);
+        int[] argb = ImagePool.shared().acquireInts(width);
+        try {
+            for(int y = 0; y < height; y++) {
+                reader.read(y, argb);
+                if(out != null) {
+                    out.writeArgbRow(y, argb, 0);
+                } else {
+                    dst.setRGB(0, y, width, 1, argb, 0, width);
+                }
+            }
+        } finally {
+            ImagePool.shared().releaseInts(argb);
+        }
+    }
+    
+    // Reads one row as 0xAARRGGBB, straight alpha
+    private interface RowReader {
+        void read(int y, int[] argb);
+    }
+    
+    private static RowReader reader(BufferedImage src, PixelLayout layout) {
+        int width = src.getWidth();
+        ColorModel cm = src.getColorModel();
+        WritableRaster raster = src.getRaster();
+        
+        if(layout != null && !layout.premultiplied) {
+            return layout::readRow;
+        }
+        
+        if(cm instanceof IndexColorModel) {
+            IndexColorModel icm = (IndexColorModel)cm;
+            int[] palette = new int[256];
+            icm.getRGBs(palette);
+            
+            SampleModel sm = raster.getSampleModel();
+            DataBuffer db = raster.getDataBuffer();
+            if(db instanceof DataBufferByte && sm instanceof PixelInterleavedSampleModel
+                    && sm.getSampleSize(0) == 8) {
+                // one byte per pixel: look the bytes up directly
+                PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel)sm;
+                byte[] bytes = ((DataBufferByte)db).getData();
+                int stride = pism.getScanlineStride();
+                int pixelStride = pism.getPixelStride();
+                int offset = db.getOffset() + pism.getBandOffsets()[0]
+                        - raster.getSampleModelTranslateY() * stride
+                        - raster.getSampleModelTranslateX() * pixelStride;
+                return (y, argb) -> {
+                    for(int x = 0, i = offset + y * stride; x < width; x++, i += pixelStride) {
+                        argb[x] = palette[bytes[i] & 0xFF];
+                    }
+                };
+            }
+            // 1, 2 or 4 bits per pixel
+            int[] indices = new int[width];
+            return (y, argb) -> {
+                raster.getSamples(0, y, width, 1, 0, indices);
+                for(int x = 0; x < width; x++) {
+                    argb[x] = palette[indices[x] & 0xFF];
+                }
+            };
+        }
+        
+        if(src.getType() == BufferedImage.TYPE_USHORT_GRAY) {
+            ComponentSampleModel csm = (ComponentSampleModel)raster.getSampleModel();
+            DataBufferUShort db = (DataBufferUShort)raster.getDataBuffer();
+            short[] shorts = db.getData();
+            int stride = csm.getScanlineStride();
+            int offset = db.getOffset() + csm.getBandOffsets()[0]
+                    - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+            return (y, argb) -> {
+                for(int x = 0, i = offset + y * stride; x < width; x++, i++) {
+                    int v = (shorts[i] >> 8) & 0xFF;
+                    argb[x] = 0xFF000000 | v << 16 | v << 8 | v;
+                }
+            };
+        }
+        
+        // everything else goes through the color model
+        return (y, argb) -> src.getRGB(0, y, width, 1, argb, 0, width);
+    }
+}
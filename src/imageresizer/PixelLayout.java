@@ -0,0 +1,326 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Where the 8 bit samples of a BufferedImage live in its backing array.
+ * 
+ * Covers the int packed types (TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_INT_BGR...)
+ * and the byte interleaved ones (TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR,
+ * TYPE_BYTE_GRAY...), which is what ImageIO decodes to for jpeg and most png.
+ * Rows are read into, and written from, a common order so any two supported
+ * layouts can be converted without going through Java2D:
+ *  - read: packed 0xAARRGGBB ints (alpha 0xFF when there is none, gray
+ *    repeated in r, g and b)
+ *  - write: fixed point ints with 1 (gray), 3 (r, g, b) or
+ *    4 (a, r*a, g*a, b*a) channels per pixel
+ * 
+ * @author gtanner
+ */
+final class PixelLayout {
+    
+    final int width;
+    final int height;
+    final int[] ints;
+    final byte[] bytes;
+    // array index of pixel (0, 0)
+    final int offset;
+    // array elements per row and per pixel
+    final int scanline;
+    final int pixelStride;
+    // 1, 3 or 4
+    final int bands;
+    final boolean alpha;
+    final boolean premultiplied;
+    // int layouts: bit shift of each band, byte layouts: byte offset in a pixel
+    final int red;
+    final int green;
+    final int blue;
+    final int alphaPos;
+    
+    private PixelLayout(BufferedImage image, int[] ints, byte[] bytes, int offset, int scanline,
+            int pixelStride, int bands, int[] pos) {
+        ColorModel cm = image.getColorModel();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.ints = ints;
+        this.bytes = bytes;
+        this.offset = offset;
+        this.scanline = scanline;
+        this.pixelStride = pixelStride;
+        this.bands = bands;
+        this.alpha = cm.hasAlpha();
+        this.premultiplied = cm.isAlphaPremultiplied();
+        this.red = pos[0];
+        this.green = bands == 1 ? pos[0] : pos[1];
+        this.blue = bands == 1 ? pos[0] : pos[2];
+        this.alphaPos = alpha ? pos[bands - 1] : -1;
+    }
+    
+    /**
+     * @param image
+     * @return the layout, or null if the image isn't 8 bits per sample in
+     *         one of the supported arrangements
+     */
+    static PixelLayout of(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        ColorModel cm = image.getColorModel();
+        DataBuffer db = raster.getDataBuffer();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+        int bands = sm.getNumBands();
+        
+        if(!cm.getColorSpace().isCS_sRGB() && bands != 1) {
+            return null;
+        }
+        for(int size : sm.getSampleSize()) {
+            if(size != 8) {
+                return null;
+            }
+        }
+        
+        if(db instanceof DataBufferInt && db.getNumBanks() == 1
+                && sm instanceof SinglePixelPackedSampleModel && cm instanceof DirectColorModel
+                && (bands == 3 || bands == 4)) {
+            SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel)sm;
+            int stride = sppsm.getScanlineStride();
+            int offset = db.getOffset() - ty * stride - tx;
+            return new PixelLayout(image, ((DataBufferInt)db).getData(), null, offset, stride, 1,
+                    bands, sppsm.getBitOffsets());
+        }
+        
+        if(db instanceof DataBufferByte && db.getNumBanks() == 1
+                && sm instanceof PixelInterleavedSampleModel && cm instanceof ComponentColorModel
+                && (bands == 1 || bands == 3 || bands == 4)) {
+            PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel)sm;
+            int stride = pism.getScanlineStride();
+            int pixelStride = pism.getPixelStride();
+            int offset = db.getOffset() - ty * stride - tx * pixelStride;
+            return new PixelLayout(image, null, ((DataBufferByte)db).getData(), offset, stride, pixelStride,
+                    bands, pism.getBandOffsets());
+        }
+        return null;
+    }
+    
+    /**
+     * True when rows can be used as 0xAARRGGBB ints straight from the array.
+     * Opaque images may have anything in the top byte.
+     */
+    boolean isArgbInts() {
+        return ints != null && red == 16 && green == 8 && blue == 0 && (!alpha || alphaPos == 24);
+    }
+    
+    /**
+     * Number of channels per pixel used for this image while resampling.
+     */
+    int channels() {
+        return bands == 1 ? 1 : alpha ? 4 : 3;
+    }
+    
+    /**
+     * Reads one row as 0xAARRGGBB ints.
+     * 
+     * @param y
+     * @param argb at least width long
+     */
+    void readRow(int y, int[] argb) {
+        int i = offset + y * scanline;
+        if(ints != null) {
+            for(int x = 0; x < width; x++, i++) {
+                int p = ints[i];
+                int a = alpha ? (p >>> alphaPos) & 0xFF : 0xFF;
+                argb[x] = a << 24 | ((p >>> red) & 0xFF) << 16 | ((p >>> green) & 0xFF) << 8 | ((p >>> blue) & 0xFF);
+            }
+        } else {
+            for(int x = 0; x < width; x++, i += pixelStride) {
+                int a = alpha ? bytes[i + alphaPos] & 0xFF : 0xFF;
+                argb[x] = a << 24 | (bytes[i + red] & 0xFF) << 16 | (bytes[i + green] & 0xFF) << 8 | (bytes[i + blue] & 0xFF);
+            }
+        }
+    }
+    
+    /**
+     * Writes one row from fixed point channels, rounding and clamping each
+     * sample.
+     * 
+     * Premultiplied colors are divided back out for straight alpha images and
+     * composited onto white for opaque ones. Color written to a gray image is
+     * converted to luma.
+     * 
+     * @param y
+     * @param row width * channels samples
+     * @param channels 1, 3 or 4, see channels()
+     * @param shift number of fraction bits in the samples
+     */
+    void writeRow(int y, int[] row, int channels, int shift) {
+        writeRow(offset + y * scanline, pixelStride, width, row, channels, shift);
+    }
+    
+    /**
+     * Like writeRow(y, row, channels, shift) for row y of the image that
+     * orientation turns into this one, which may land in a column.
+     * 
+     * @param y row of the stored image
+     * @param row samples for each pixel of the stored row
+     * @param channels
+     * @param shift
+     * @param orientation
+     */
+    void writeRow(int y, int[] row, int channels, int shift, Orientation orientation) {
+        if(orientation == Orientation.NORMAL) {
+            writeRow(y, row, channels, shift);
+        } else {
+            writeRow(orientation.rowStart(this, y), orientation.step(this),
+                    orientation.swapsAxes() ? height : width, row, channels, shift);
+        }
+    }
+    
+    // pixels samples from row, the first at array index i, step apart
+    private void writeRow(int i, int step, int pixels, int[] row, int channels, int shift) {
+        int half = 1 << (shift - 1);
+        
+        for(int x = 0, c = 0; x < pixels; x++, c += channels, i += step) {
+            int r, g, b;
+            int a = 255;
+            if(channels == 1) {
+                r = g = b = clamp((row[c] + half) >> shift);
+            } else if(channels == 3) {
+                r = clamp((row[c] + half) >> shift);
+                g = clamp((row[c + 1] + half) >> shift);
+                b = clamp((row[c + 2] + half) >> shift);
+            } else {
+                a = clamp((row[c] + half) >> shift);
+                r = clamp((row[c + 1] + half) >> shift);
+                g = clamp((row[c + 2] + half) >> shift);
+                b = clamp((row[c + 3] + half) >> shift);
+                if(!alpha) {
+                    // flatten onto white
+                    int white = 255 - a;
+                    r = Math.min(255, r + white);
+                    g = Math.min(255, g + white);
+                    b = Math.min(255, b + white);
+                } else if(!premultiplied && a < 255) {
+                    if(a == 0) {
+                        r = g = b = 0;
+                    } else {
+                        int round = a >> 1;
+                        r = Math.min(255, (r * 255 + round) / a);
+                        g = Math.min(255, (g * 255 + round) / a);
+                        b = Math.min(255, (b * 255 + round) / a);
+                    }
+                }
+            }
+            
+            if(bands == 1) {
+                bytes[i + red] = (byte)(channels == 1 ? r : (77 * r + 150 * g + 29 * b + 128) >> 8);
+            } else if(ints != null) {
+                int p = r << red | g << green | b << blue;
+                if(alpha) {
+                    p |= a << alphaPos;
+                }
+                ints[i] = p;
+            } else {
+                bytes[i + red] = (byte)r;
+                bytes[i + green] = (byte)g;
+                bytes[i + blue] = (byte)b;
+                if(alpha) {
+                    bytes[i + alphaPos] = (byte)a;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes one row from 0xAARRGGBB ints with straight (not premultiplied)
+     * alpha. Opaque images get the pixels composited onto white, gray
+     * images get luma.
+     * 
+     * @param y
+     * @param argb
+     * @param off index of the first pixel in argb
+     */
+    void writeArgbRow(int y, int[] argb, int off) {
+        int i = offset + y * scanline;
+        int end = off + width;
+        
+        if(bands == 1) {
+            for(int x = off; x < end; x++, i += pixelStride) {
+                int p = toStored(argb[x]);
+                int luma = 77 * ((p >> 16) & 0xFF) + 150 * ((p >> 8) & 0xFF) + 29 * (p & 0xFF) + 128;
+                bytes[i + red] = (byte)(luma >> 8);
+            }
+        } else if(isArgbInts()) {
+            int mask = alpha ? 0xFFFFFFFF : 0xFFFFFF;
+            for(int x = off; x < end; x++, i++) {
+                ints[i] = toStored(argb[x]) & mask;
+            }
+        } else if(ints != null) {
+            for(int x = off; x < end; x++, i++) {
+                int p = toStored(argb[x]);
+                int q = ((p >> 16) & 0xFF) << red | ((p >> 8) & 0xFF) << green | (p & 0xFF) << blue;
+                ints[i] = alpha ? q | (p >>> 24) << alphaPos : q;
+            }
+        } else {
+            for(int x = off; x < end; x++, i += pixelStride) {
+                int p = toStored(argb[x]);
+                bytes[i + red] = (byte)(p >> 16);
+                bytes[i + green] = (byte)(p >> 8);
+                bytes[i + blue] = (byte)p;
+                if(alpha) {
+                    bytes[i + alphaPos] = (byte)(p >>> 24);
+                }
+            }
+        }
+    }
+    
+    // Straight alpha pixel as it is stored in this image: flattened onto
+    // white when opaque, premultiplied if that is the color model
+    private int toStored(int p) {
+        int a = p >>> 24;
+        if(a == 255 || (alpha && !premultiplied)) {
+            return p;
+        }
+        int r = (p >> 16) & 0xFF;
+        int g = (p >> 8) & 0xFF;
+        int b = p & 0xFF;
+        if(alpha) {
+            r = div255(r * a);
+            g = div255(g * a);
+            b = div255(b * a);
+        } else {
+            // c * a + 255 * (255 - a)
+            int white = 255 * (255 - a);
+            r = div255(r * a + white);
+            g = div255(g * a + white);
+            b = div255(b * a + white);
+            a = 255;
+        }
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+    
+    // v / 255 rounded, for v up to 255 * 255
+    private static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+    
+    private static int clamp(int v) {
+        return v < 0 ? 0 : v > 255 ? 255 : v;
+    }
+}
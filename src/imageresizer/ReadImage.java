@@ -5,15 +5,24 @@
  */
 package imageresizer;
 
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 /**
- *
+ * 
  * @author gtanner
  */
 public class ReadImage {
@@ -26,14 +35,13 @@ public class ReadImage {
             readFromUrl("https://www.fws.gov/sacramento/es_species/Accounts/Amphibians-Reptiles/ca_red_legged_frog/images/cal_red_legged_frog.jpg");
             readFromStream("src\\imageresizer\\frog.jpg");
         } catch(IOException ioe) {
-            ioe.getMessage();
+            Logger.getLogger(ReadImage.class.getName()).log(Level.SEVERE, null, ioe);
         }
     }
     
     private static void readFromUrl(String url) throws IOException {
         // Read image from URL
-        URL urlInput = new URL(url);
-        BufferedImage urlImage = ImageIO.read(urlInput);
+        DecodedImage urlImage = decodeUrl(url);
         printDims(urlImage);
     }
     
@@ -41,21 +49,67 @@ public class ReadImage {
         // Read image from a local file
         File fileInput = new File(filename);
         System.out.println(fileInput.getAbsolutePath());
-        BufferedImage folderImage = ImageIO.read(fileInput);
+        DecodedImage folderImage = decodeFile(fileInput);
         printDims(folderImage);
     }
     
     private static void readFromStream(String stream) throws IOException {
         // Read image from InputStream
-        FileInputStream fis = new FileInputStream(stream);
-        BufferedImage fisImage = ImageIO.read(fis);
+        DecodedImage fisImage = decodeStream(stream);
         printDims(fisImage);
     }
     
-    private static void printDims(BufferedImage image) {
-        int width = 0;
-        int height = 0;
-        System.out.println("Width: " + image.getWidth());
-        System.out.println("Height: " + image.getHeight());
+    // The decode paths on their own, without the printing. Each returns
+    // null if no reader handles the image.
+    static DecodedImage decodeUrl(String url) throws IOException {
+        try(InputStream in = new URL(url).openStream()) {
+            return decode(new MemoryCacheImageInputStream(in));
+        }
+    }
+    
+    // Mapped, see MappedImageInputStream
+    static DecodedImage decodeFile(File file) throws IOException {
+        try(ImageInputStream iis = MappedImageInputStream.open(file)) {
+            return decode(iis);
+        }
+    }
+    
+    // ImageIO.read(InputStream) would copy the stream to a temp file first
+    static DecodedImage decodeStream(String stream) throws IOException {
+        try(InputStream in = new BufferedInputStream(new FileInputStream(stream))) {
+            return decode(new MemoryCacheImageInputStream(in));
+        }
+    }
+    
+    // What ImageIO.read() does, keeping the reader to ask for the EXIF
+    // orientation first. The stream is read forward only, so the metadata
+    // comes before the pixels. Closes iis, but not the stream under it.
+    private static DecodedImage decode(ImageInputStream iis) throws IOException {
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if(!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                Orientation orientation = ExifMetadata.read(reader).getOrientation();
+                return new DecodedImage(reader.read(0), orientation, false);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+    
+    // The upright size, which is how the image is shown
+    private static void printDims(DecodedImage decoded) {
+        BufferedImage image = decoded.getImage();
+        Orientation orientation = decoded.getOrientation();
+        Dimension upright = orientation.turn(image.getWidth(), image.getHeight());
+        System.out.println("Width: " + upright.width);
+        System.out.println("Height: " + upright.height);
+        System.out.println("Orientation: " + orientation);
     }
 }
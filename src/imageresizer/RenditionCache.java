@@ -0,0 +1,288 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of resized files.
+ * 
+ * Entries are keyed by a SHA-256 of the source file bytes plus a string
+ * describing the resize (size, kernel, quality...), so a renamed copy of a
+ * photo still hits and an edited photo misses. A hit is a file copy, the
+ * source is never decoded.
+ * 
+ * The cache holds at most maxBytes of files. When a new entry goes over,
+ * the least recently used entries are deleted. The LRU order is kept in an
+ * index file in the cache folder so it survives restarts. Each put appends
+ * one line to the index, later lines winning, and the index is rewritten
+ * in LRU order only when the cache is opened, when saveIndex() is called
+ * or when the appended lines outnumber the entries, so a batch doesn't
+ * rewrite it for every file.
+ * 
+ * @author gtanner
+ */
+public class RenditionCache {
+    
+    private static final String INDEX = "index.txt";
+    private static final String SUFFIX = ".jpg";
+    
+    private final Path directory;
+    private final long maxBytes;
+    
+    // key -> file size, in access order (least recently used first)
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    // lines in the index file, some of them stale
+    private int indexLines;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    /**
+     * Opens, or creates, a cache in a folder.
+     * 
+     * @param directory
+     * @param maxBytes total size of the cached files
+     */
+    public RenditionCache(Path directory, long maxBytes) throws IOException {
+        if(maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        loadIndex();
+        evict();
+        saveIndex();
+    }
+    
+    /**
+     * Hashes the source bytes and the resize parameters.
+     * 
+     * @param source
+     * @param parameters everything that changes the output, for example
+     *        "w=800;filter=LANCZOS3;maxBytes=512000"
+     * @return the cache key
+     */
+    public static String key(File source, String parameters) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try(InputStream in = Files.newInputStream(source.toPath())) {
+            for(int n; (n = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return key(digest, parameters);
+    }
+    
+    /**
+     * Same as key(File, String) for a source already read into memory.
+     * 
+     * @param source the contents of the source file, from its position to
+     *        its limit. The buffer itself isn't changed.
+     * @param parameters
+     * @return the cache key
+     */
+    public static String key(ByteBuffer source, String parameters) {
+        MessageDigest digest = sha256();
+        digest.update(source.duplicate());
+        return key(digest, parameters);
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            // every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String key(MessageDigest digest, String parameters) {
+        digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+        
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Copies a cached file to output.
+     * 
+     * @param key
+     * @param output
+     * @return true on a hit, false if the key isn't cached
+     */
+    public boolean copyTo(String key, File output) throws IOException {
+        Path cached = file(key);
+        synchronized(this) {
+            if(entries.get(key) == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+        }
+        try {
+            // outside the lock, a put() may evict the entry meanwhile
+            Files.copy(cached, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch(NoSuchFileException e) {
+            synchronized(this) {
+                // evicted, or deleted behind our back, unless put again since
+                if(!Files.exists(cached)) {
+                    Long size = entries.remove(key);
+                    if(size != null) {
+                        totalBytes -= size;
+                    }
+                }
+            }
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+    
+    /**
+     * Adds a copy of a resized file, evicting old entries if needed.
+     * Files bigger than the whole cache are not added.
+     * 
+     * @param key
+     * @param output
+     */
+    public void put(String key, File output) throws IOException {
+        long size = output.length();
+        if(size > maxBytes) {
+            return;
+        }
+        
+        // copy under a temp name so readers never see half a file
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.copy(output.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            synchronized(this) {
+                Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING);
+                Long old = entries.put(key, size);
+                totalBytes += size - (old == null ? 0 : old);
+                evict();
+                if(indexLines >= 2 * entries.size() + 64) {
+                    saveIndex();
+                } else {
+                    appendIndex(key, size);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * Rewrites the index file in LRU order, dropping stale lines. Puts are
+     * kept without it, call it before exiting to also keep the order of
+     * recent hits.
+     */
+    public synchronized void saveIndex() throws IOException {
+        Path temp = directory.resolve(INDEX + ".tmp");
+        try(BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for(Map.Entry<String, Long> e : entries.entrySet()) {
+                out.write(e.getKey() + " " + e.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(temp, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING);
+        indexLines = entries.size();
+    }
+    
+    // One line on the end of the index, as the most recently used entry
+    private void appendIndex(String key, long size) throws IOException {
+        Files.write(directory.resolve(INDEX), (key + " " + size + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        indexLines++;
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    public synchronized long getBytes() {
+        return totalBytes;
+    }
+    
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Cache %s: %d files, %dKB of %dKB, %d hits, %d misses, %d evictions",
+                directory, size(), getBytes() / 1024, maxBytes / 1024, getHits(), getMisses(), getEvictions());
+    }
+    
+    private Path file(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+    
+    // Deletes least recently used entries until the cache fits
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while(totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            Files.deleteIfExists(file(eldest.getKey()));
+            totalBytes -= eldest.getValue();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+    
+    private void loadIndex() throws IOException {
+        Path index = directory.resolve(INDEX);
+        if(!Files.exists(index)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(index, StandardCharsets.UTF_8);
+        for(String line : lines) {
+            String[] parts = line.trim().split(" ");
+            if(parts.length != 2) {
+                continue;
+            }
+            Path cached = file(parts[0]);
+            // skip entries whose file is gone, trust the size on disk. A key
+            // on a later line was used later.
+            if(Files.isRegularFile(cached)) {
+                long size = Files.size(cached);
+                Long old = entries.put(parts[0], size);
+                totalBytes += size - (old == null ? 0 : old);
+            }
+        }
+    }
+}
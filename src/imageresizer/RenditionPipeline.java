@@ -0,0 +1,200 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Makes several sizes of one image from a single decode.
+ * 
+ * ImageScaleByPercentHints.main scales planet.jpg four times, each time from
+ * the full resolution original. Here the source is decoded once, subsampled
+ * to the largest size needed, and the renditions are made largest first,
+ * each from the smallest image already made that still covers it. A 160 px
+ * thumbnail is scaled from the 235 px Word rendition instead of from 4000 px.
+ * Sizes are of the upright image: the scale from the decoded source turns
+ * it by its EXIF orientation, and the rest are made from upright images.
+ * 
+ * Each rendition is handed to the executor to encode as soon as it is
+ * scaled, so jpeg encoding runs in parallel with the rest of the chain.
+ * 
+ * @author gtanner
+ */
+public class RenditionPipeline {
+    
+    private final Executor executor;
+    private final ResampleFilter filter;
+    
+    // Encoders keep their buffers between images, one per worker thread
+    private final ThreadLocal<JpegSizeEncoder> encoders = ThreadLocal.withInitial(JpegSizeEncoder::new);
+    
+    public RenditionPipeline() {
+        this(ForkJoinPool.commonPool(), ResampleFilter.LANCZOS3);
+    }
+    
+    /**
+     * @param executor runs the encodes
+     * @param filter kernel used for every rendition
+     */
+    public RenditionPipeline(Executor executor, ResampleFilter filter) {
+        this.executor = executor;
+        this.filter = filter;
+    }
+    
+    /**
+     * Writes one jpeg per spec into outputDir, named after the source and
+     * the spec, for example mallard_thumb.jpg.
+     * 
+     * @param source
+     * @param specs
+     * @param outputDir
+     * @return the written files, in the same order as specs
+     */
+    public List<File> render(File source, List<RenditionSpec> specs, File outputDir) throws IOException {
+        if(specs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        Dimension sourceSize = uprightSize(source);
+        Dimension[] sizes = new Dimension[specs.size()];
+        int maxWidth = 1;
+        int maxHeight = 1;
+        for(int i = 0; i < sizes.length; i++) {
+            sizes[i] = specs.get(i).targetSize(sourceSize.width, sourceSize.height);
+            maxWidth = Math.max(maxWidth, sizes[i].width);
+            maxHeight = Math.max(maxHeight, sizes[i].height);
+        }
+        
+        // One decode, only as big as the largest rendition needs
+        RenditionSpec largest = RenditionSpec.fit("largest",
+                Math.min(maxWidth, sourceSize.width), Math.min(maxHeight, sourceSize.height));
+        DecodedImage decoded;
+        try(ImageInputStream iis = MappedImageInputStream.open(source)) {
+            decoded = SubsampledReader.read(iis, largest, new Dimension());
+        }
+        if(decoded == null) {
+            throw new IOException("No image reader for " + source);
+        }
+        
+        // Largest first, so every rendition can come from a bigger one
+        Integer[] order = new Integer[sizes.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(area(sizes[b]), area(sizes[a])));
+        
+        String baseName = ImageResizer.outputName(source.toPath());
+        baseName = baseName.substring(0, baseName.length() - ".jpg".length());
+        
+        List<BufferedImage> made = new ArrayList<>();
+        File[] files = new File[sizes.length];
+        List<CompletableFuture<Void>> encodes = new ArrayList<>();
+        
+        try {
+            for(int i : order) {
+                RenditionSpec spec = specs.get(i);
+                BufferedImage from = nearestCovering(made, sizes[i]);
+                BufferedImage rendition = from != null
+                        ? ImageResizer.scale(from, sizes[i].width, sizes[i].height, filter)
+                        : ImageResizer.scale(decoded.getImage(), sizes[i].width, sizes[i].height, filter,
+                                decoded.getOrientation());
+                made.add(rendition);
+                
+                File file = new File(outputDir, baseName + "_" + spec.getName() + ".jpg");
+                files[i] = file;
+                encodes.add(CompletableFuture.runAsync(() -> encode(rendition, spec, file), executor));
+            }
+            
+            CompletableFuture.allOf(encodes.toArray(new CompletableFuture<?>[0])).join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)e.getCause()).getCause();
+            }
+            throw e;
+        } finally {
+            // Renditions come from the ImagePool. Smaller ones are scaled
+            // from bigger ones, so none goes back until every scale and
+            // encode is done, even when one of them failed.
+            CompletableFuture.allOf(encodes.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+            for(BufferedImage image : made) {
+                ImagePool.shared().release(image);
+            }
+        }
+        return Arrays.asList(files);
+    }
+    
+    private void encode(BufferedImage image, RenditionSpec spec, File file) {
+        try {
+            if(spec.getMaxBytes() > 0) {
+                BufferedImage written = encoders.get().write(image, spec.getMaxBytes(), file);
+                if(written != image) {
+                    // converted or scaled down from the ImagePool
+                    ImagePool.shared().release(written);
+                }
+            } else if(!ImageIO.write(PixelConverter.toJpegSafe(image), "jpg", file)) {
+                throw new IOException("No jpeg writer available");
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    // Smallest image made so far that is at least the target size, null if
+    // none is and the decoded source has to be used
+    private static BufferedImage nearestCovering(List<BufferedImage> made, Dimension target) {
+        BufferedImage best = null;
+        for(BufferedImage image : made) {
+            if(image.getWidth() >= target.width && image.getHeight() >= target.height
+                    && (best == null || area(image) < area(best))) {
+                best = image;
+            }
+        }
+        return best;
+    }
+    
+    private static long area(Dimension d) {
+        return (long)d.width * d.height;
+    }
+    
+    private static long area(BufferedImage image) {
+        return (long)image.getWidth() * image.getHeight();
+    }
+    
+    // Reads the size from the header without decoding, turned by the EXIF
+    // orientation
+    private static Dimension uprightSize(File source) throws IOException {
+        try(ImageInputStream iis = MappedImageInputStream.open(source)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if(readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(iis, true, true);
+                    Orientation orientation = ExifMetadata.read(reader).getOrientation();
+                    return orientation.turn(reader.getWidth(0), reader.getHeight(0));
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+        throw new IOException("No image reader for " + source);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.Dimension;
+
+/**
+ * One output size for the RenditionPipeline.
+ * 
+ * A rendition either fits inside a box (aspect ratio preserved, never
+ * scaled up) or is a percent of the source. It can also have a file size
+ * limit, see JpegSizeEncoder.
+ * 
+ * @author gtanner
+ */
+public class RenditionSpec {
+    
+    /** Camera style thumbnail. */
+    public static final RenditionSpec THUMBNAIL = new RenditionSpec("thumb", 160, 160, 0, 0);
+    
+    /** Screen preview. */
+    public static final RenditionSpec PREVIEW = new RenditionSpec("preview", 1024, 768, 0, 0);
+    
+    /** Two images side by side in a Word document, see ImageScaleByPercent. */
+    public static final RenditionSpec WORD_DOC = new RenditionSpec("word", 235, Integer.MAX_VALUE, 0, 0);
+    
+    /** Original size, no bigger than the 500KB in the README. */
+    public static final RenditionSpec FULL_SIZE = new RenditionSpec("full", Integer.MAX_VALUE, Integer.MAX_VALUE, 0,
+            JpegSizeEncoder.DEFAULT_MAX_BYTES);
+    
+    private final String name;
+    private final int maxWidth;
+    private final int maxHeight;
+    private final double percent;
+    private final long maxBytes;
+    
+    private RenditionSpec(String name, int maxWidth, int maxHeight, double percent, long maxBytes) {
+        if(name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("A rendition needs a name");
+        }
+        this.name = name;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.percent = percent;
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * @param name used in the output file name
+     * @param maxWidth
+     * @param maxHeight
+     * @return a rendition that fits inside maxWidth x maxHeight
+     */
+    public static RenditionSpec fit(String name, int maxWidth, int maxHeight) {
+        if(maxWidth < 1 || maxHeight < 1) {
+            throw new IllegalArgumentException("Bad size " + maxWidth + "x" + maxHeight);
+        }
+        return new RenditionSpec(name, maxWidth, maxHeight, 0, 0);
+    }
+    
+    /**
+     * @param name used in the output file name
+     * @param percent 0.5 for half size, 2 for double
+     * @return a rendition scaled by percent
+     */
+    public static RenditionSpec percent(String name, double percent) {
+        if(percent <= 0) {
+            throw new IllegalArgumentException("percent must be positive: " + percent);
+        }
+        return new RenditionSpec(name, 0, 0, percent, 0);
+    }
+    
+    /**
+     * @param maxBytes largest file to write, 0 for no limit
+     * @return a copy of this rendition with a file size limit
+     */
+    public RenditionSpec withMaxBytes(long maxBytes) {
+        if(maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes can't be negative: " + maxBytes);
+        }
+        return new RenditionSpec(name, maxWidth, maxHeight, percent, maxBytes);
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    /**
+     * @param width of the source
+     * @param height of the source
+     * @return size of this rendition of the source
+     */
+    public Dimension targetSize(int width, int height) {
+        if(percent > 0) {
+            return new Dimension(Math.max(1, (int)(width * percent)), Math.max(1, (int)(height * percent)));
+        }
+        return SubsampledReader.fitInside(width, height, maxWidth, maxHeight);
+    }
+    
+    // The size part of the settings a file was resized with, see
+    // ImageResizer.parameters()
+    String sizeParameters() {
+        if(percent > 0) {
+            return "p=" + percent;
+        }
+        if(maxHeight == Integer.MAX_VALUE) {
+            return "w=" + maxWidth;
+        }
+        return "w=" + maxWidth + ";h=" + maxHeight;
+    }
+    
+    @Override
+    public String toString() {
+        if(percent > 0) {
+            return name + " (" + percent * 100 + "%)";
+        }
+        return name + " (" + maxWidth + "x" + maxHeight + ")";
+    }
+}
@@ -0,0 +1,88 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+/**
+ * Reconstruction kernels for the Resampler.
+ * 
+ * Each filter is a weight function centered on 0 that is zero outside of
+ * its radius. When scaling down, the kernel is stretched by the reduction
+ * so every source pixel contributes.
+ * 
+ * @author gtanner
+ */
+public enum ResampleFilter {
+    
+    /** Area average when scaling down, nearest neighbor when scaling up. */
+    BOX(0.5) {
+        @Override
+        double weight(double x) {
+            return x >= -0.5 && x < 0.5 ? 1 : 0;
+        }
+    },
+    
+    /** Triangle filter. Cheap, a little soft. */
+    BILINEAR(1) {
+        @Override
+        double weight(double x) {
+            x = Math.abs(x);
+            return x < 1 ? 1 - x : 0;
+        }
+    },
+    
+    /** Mitchell-Netravali cubic with B = C = 1/3. Sharp with little ringing. */
+    MITCHELL(2) {
+        @Override
+        double weight(double x) {
+            final double B = 1.0 / 3.0;
+            final double C = 1.0 / 3.0;
+            x = Math.abs(x);
+            if(x < 1) {
+                return ((12 - 9 * B - 6 * C) * x * x * x
+                        + (-18 + 12 * B + 6 * C) * x * x
+                        + (6 - 2 * B)) / 6;
+            }
+            if(x < 2) {
+                return ((-B - 6 * C) * x * x * x
+                        + (6 * B + 30 * C) * x * x
+                        + (-12 * B - 48 * C) * x
+                        + (8 * B + 24 * C)) / 6;
+            }
+            return 0;
+        }
+    },
+    
+    /** Windowed sinc over 3 lobes. Best detail, the most taps. */
+    LANCZOS3(3) {
+        @Override
+        double weight(double x) {
+            x = Math.abs(x);
+            if(x < 1e-8) {
+                return 1;
+            }
+            if(x >= 3) {
+                return 0;
+            }
+            double pix = Math.PI * x;
+            return 3 * Math.sin(pix) * Math.sin(pix / 3) / (pix * pix);
+        }
+    };
+    
+    private final double radius;
+    
+    ResampleFilter(double radius) {
+        this.radius = radius;
+    }
+    
+    /**
+     * @return distance from the center past which the weight is zero
+     */
+    public double getRadius() {
+        return radius;
+    }
+    
+    abstract double weight(double x);
+}
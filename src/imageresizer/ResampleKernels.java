@@ -0,0 +1,85 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The inner loops of Resampler, chosen once per process.
+ * 
+ * This class is the scalar backend: each method calls the static kernel of
+ * the same name in Resampler. VectorKernels, in the separate vector source
+ * root, overrides them with jdk.incubator.vector code. It is compiled for
+ * Java 17 and only loads when the incubator module is resolved, so this
+ * source tree still builds and runs on Java 8. Every backend must produce
+ * the same ints as the scalar one, so the output never depends on the
+ * machine.
+ * 
+ * Set -Dimageresizer.kernels=scalar to skip the vector backend.
+ * 
+ * @author gtanner
+ */
+class ResampleKernels {
+    
+    private static final Logger LOG = Logger.getLogger(ResampleKernels.class.getName());
+    
+    private static final String VECTOR = "imageresizer.VectorKernels";
+    
+    /**
+     * @return the vector kernels if they are on the classpath and usable on
+     *         this JVM and CPU, otherwise the scalar ones
+     */
+    static ResampleKernels load() {
+        if(!"scalar".equals(System.getProperty("imageresizer.kernels"))) {
+            try {
+                return (ResampleKernels)Class.forName(VECTOR).getDeclaredConstructor().newInstance();
+            } catch(ReflectiveOperationException | LinkageError | RuntimeException e) {
+                // not compiled, jdk.incubator.vector not added, or too few lanes
+                LOG.log(Level.FINE, "Using the scalar resample kernels", e);
+            }
+        }
+        return new ResampleKernels();
+    }
+    
+    void vertical(int[][] ring, int first, int[] weights, int wi, int taps, int[] acc, int length) {
+        Resampler.vertical(ring, first, weights, wi, taps, acc, length);
+    }
+    
+    void horizontalArgb(int[] px, int off, WeightTable table, int[] out, boolean premultiplied) {
+        Resampler.horizontalArgb(px, off, table, out, premultiplied);
+    }
+    
+    void horizontalRgb(int[] px, int off, WeightTable table, int[] out) {
+        Resampler.horizontalRgb(px, off, table, out);
+    }
+    
+    void horizontalBytes3(PixelLayout src, int off, WeightTable table, int[] out) {
+        Resampler.horizontalBytes3(src, off, table, out);
+    }
+    
+    void horizontalBytes4(PixelLayout src, int off, WeightTable table, int[] out) {
+        Resampler.horizontalBytes4(src, off, table, out);
+    }
+    
+    void horizontalBytes1(byte[] px, int off, int stride, WeightTable table, int[] out) {
+        Resampler.horizontalBytes1(px, off, stride, table, out);
+    }
+    
+    /**
+     * Whether Resampler.resizeReduced should average the source down with
+     * BoxReducer first. BoxReducer is scalar, so it only pays when the
+     * filter pass it shortens is scalar too.
+     */
+    boolean boxReduceFirst() {
+        return true;
+    }
+    
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,614 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Separable two pass image scaling with a choice of kernel.
+ * 
+ * Graphics2D.drawImage() with no hints is nearest neighbor, and even with
+ * bilinear hints it only looks at 4 source pixels, so big reductions alias.
+ * Here every output pixel is a weighted sum over the whole kernel footprint,
+ * first along each row (horizontal pass) then down each column (vertical pass).
+ * 
+ * The passes work on the int[] or byte[] backing the images. Weights for
+ * both directions are computed once per resize (see WeightTable). Rows that
+ * have been through the horizontal pass are kept in a ring one kernel tall,
+ * so the scratch memory is a few rows, not a second image, and it comes
+ * from the ImagePool. The inner loops are the static kernels at the end of
+ * this class, or their vector versions when ResampleKernels finds them.
+ * 
+ * resizeInBands() splits one resize across cores: each band of destination
+ * rows is resampled by its own task, with its own ring, so a band filters
+ * the kernel's overlap of source rows again rather than share them.
+ * 
+ * The overloads that take an Orientation turn a camera image upright in
+ * the same pass: rows are resampled as stored and each one is written
+ * where the orientation puts it in the destination, a column for the
+ * quarter turns.
+ * 
+ * @author gtanner
+ */
+public class Resampler {
+    
+    // smallest reduction left for the filter after resizeReduced's box step
+    static final int REDUCING_GAP = 2;
+    
+    // scalar or vector inner loops, see ResampleKernels
+    static final ResampleKernels KERNELS = ResampleKernels.load();
+    
+    /**
+     * Scales an image to the given size. The type is preserved when the
+     * resampler can work on it directly, otherwise the result is
+     * TYPE_INT_ARGB or TYPE_INT_RGB.
+     * 
+     * @param src
+     * @param width
+     * @param height
+     * @param filter
+     * @return the new image
+     */
+    public static BufferedImage resize(BufferedImage src, int width, int height, ResampleFilter filter) {
+        int type = PixelLayout.of(src) != null && src.getType() != BufferedImage.TYPE_CUSTOM
+                ? src.getType()
+                : opaqueOrArgb(src);
+        BufferedImage dst = new BufferedImage(width, height, type);
+        resize(src, dst, filter);
+        return dst;
+    }
+    
+    /**
+     * Scales src to fill dst. The two images may have different types, for
+     * example an ARGB source can be written straight into an RGB destination,
+     * in which case it is composited onto white.
+     * 
+     * @param src
+     * @param dst best as an 8 bits per sample int packed or byte interleaved
+     *        type, anything else takes an extra Java2D copy
+     * @param filter
+     */
+    public static void resize(BufferedImage src, BufferedImage dst, ResampleFilter filter) {
+        resize(src, dst, filter, Orientation.NORMAL);
+    }
+    
+    /**
+     * Like resize(src, dst, filter), turning src upright as it is written.
+     * dst is the upright size, so for the orientations that swap axes its
+     * width scales src's height.
+     * 
+     * @param src the image as stored
+     * @param dst
+     * @param filter
+     * @param orientation how src turns upright, from its EXIF data
+     */
+    public static void resize(BufferedImage src, BufferedImage dst, ResampleFilter filter, Orientation orientation) {
+        if(PixelLayout.of(dst) == null) {
+            BufferedImage resized = new BufferedImage(dst.getWidth(), dst.getHeight(), opaqueOrArgb(src));
+            resize(src, resized, filter, orientation);
+            copy(resized, dst);
+            return;
+        }
+        Pass pass = new Pass(src, dst, filter, orientation);
+        pass.rows(0, pass.yWeights.dstLength);
+    }
+    
+    /**
+     * Like resize(src, dst, filter), in two steps for big reductions. The
+     * source is first averaged down by whole factors with BoxReducer, leaving
+     * at least REDUCING_GAP times to go in each direction, then the filter
+     * scales that to dst. The box step is integer only and reads each source
+     * pixel once, so the full kernel runs over a fraction of the pixels.
+     * Reductions of less than twice REDUCING_GAP are a plain resize(), and
+     * so is everything with the vector kernels, where one pass over the
+     * whole source beats the scalar box step plus a pass, see
+     * ResampleKernels.boxReduceFirst().
+     * 
+     * @param src
+     * @param dst
+     * @param filter
+     */
+    public static void resizeReduced(BufferedImage src, BufferedImage dst, ResampleFilter filter) {
+        resizeReduced(src, dst, filter, Orientation.NORMAL);
+    }
+    
+    /**
+     * resizeReduced(src, dst, filter) turning src upright, see
+     * resize(src, dst, filter, orientation).
+     * 
+     * @param src the image as stored
+     * @param dst
+     * @param filter
+     * @param orientation
+     */
+    public static void resizeReduced(BufferedImage src, BufferedImage dst, ResampleFilter filter,
+            Orientation orientation) {
+        Dimension stored = orientation.turn(dst.getWidth(), dst.getHeight());
+        int fx = Math.max(1, src.getWidth() / (stored.width * REDUCING_GAP));
+        int fy = Math.max(1, src.getHeight() / (stored.height * REDUCING_GAP));
+        if(fx == 1 && fy == 1 || !KERNELS.boxReduceFirst()) {
+            resize(src, dst, filter, orientation);
+            return;
+        }
+        if(PixelLayout.of(dst) == null) {
+            BufferedImage resized = new BufferedImage(dst.getWidth(), dst.getHeight(), opaqueOrArgb(src));
+            resizeReduced(src, resized, filter, orientation);
+            copy(resized, dst);
+            return;
+        }
+        
+        BufferedImage reduced = BoxReducer.reduce(src, fx, fy);
+        try {
+            // the filter spans the source's true width in reduced pixels,
+            // so a short block at the edge doesn't stretch the image
+            new Pass(PixelLayout.of(reduced), reduced.getHeight(),
+                    (double)src.getWidth() / fx, (double)src.getHeight() / fy,
+                    PixelLayout.of(dst), dst.getHeight(), filter, orientation).rows(0, stored.height);
+        } finally {
+            ImagePool.shared().release(reduced);
+        }
+    }
+    
+    /**
+     * Like resize(src, dst, filter), with the destination split into bands
+     * of rows that are resampled in parallel, for a single very large image.
+     * Runs on the ForkJoinPool of the calling thread, or the common pool,
+     * and returns when every band is written.
+     * 
+     * @param src
+     * @param dst
+     * @param filter
+     */
+    public static void resizeInBands(BufferedImage src, BufferedImage dst, ResampleFilter filter) {
+        resizeInBands(src, dst, filter, Orientation.NORMAL);
+    }
+    
+    /**
+     * resizeInBands(src, dst, filter) turning src upright, see
+     * resize(src, dst, filter, orientation). The bands are rows of src
+     * scaled, which may be columns of dst.
+     * 
+     * @param src the image as stored
+     * @param dst
+     * @param filter
+     * @param orientation
+     */
+    public static void resizeInBands(BufferedImage src, BufferedImage dst, ResampleFilter filter,
+            Orientation orientation) {
+        if(PixelLayout.of(dst) == null) {
+            BufferedImage resized = new BufferedImage(dst.getWidth(), dst.getHeight(), opaqueOrArgb(src));
+            resizeInBands(src, resized, filter, orientation);
+            copy(resized, dst);
+            return;
+        }
+        Pass pass = new Pass(src, dst, filter, orientation);
+        int height = pass.yWeights.dstLength;
+        // the caller works on the common pool's tasks too
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        int threads = pool != null ? pool.getParallelism() : ForkJoinPool.getCommonPoolParallelism() + 1;
+        if(threads < 2) {
+            pass.rows(0, height);
+            return;
+        }
+        // a few bands per thread to even out, no smaller than bandRows()
+        int grain = Math.max(pass.bandRows(), height / (threads * 4));
+        new Bands(pass, 0, height, grain).invoke();
+    }
+    
+    // Converts images the resampler can't read to an int type with Java2D
+    static BufferedImage toSupported(BufferedImage src) {
+        if(PixelLayout.of(src) != null) {
+            return src;
+        }
+        return PixelConverter.convert(src, opaqueOrArgb(src));
+    }
+    
+    private static int opaqueOrArgb(BufferedImage image) {
+        return image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+    }
+    
+    // Writes a resized image into a destination the passes can't write to
+    private static void copy(BufferedImage resized, BufferedImage dst) {
+        Graphics2D g = dst.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(resized, 0, 0, null);
+        g.dispose();
+    }
+    
+    /**
+     * One resize, ready to produce any range of destination rows.
+     * 
+     * Normally src and dst are whole images. For streaming, src can be a
+     * strip of rows starting at srcY0 and dst a strip starting at dstY0;
+     * loadSource() is called when a row outside the source strip is needed
+     * and rowWritten() after each destination row.
+     * 
+     * A whole image pass can also write through an Orientation. Rows and
+     * widths are then those of the source turned back to stored
+     * orientation: row y of that is written wherever the orientation puts
+     * it in dst.
+     */
+    static class Pass {
+        // fraction bits kept between the passes
+        static final int ROW_BITS = 7;
+        // fraction bits in the vertical sums
+        static final int OUT_BITS = ROW_BITS + WeightTable.BITS;
+        // smallest band of destination rows resizeInBands() splits off
+        static final int MIN_BAND_ROWS = 16;
+        
+        PixelLayout src;
+        int srcY0;
+        PixelLayout dst;
+        int dstY0;
+        final WeightTable xWeights;
+        final WeightTable yWeights;
+        // channels per pixel between the passes
+        final int channels;
+        // dst is upright, rows are resampled as stored
+        final Orientation orientation;
+        
+        Pass(BufferedImage srcImage, BufferedImage dstImage, ResampleFilter filter) {
+            this(srcImage, dstImage, filter, Orientation.NORMAL);
+        }
+        
+        Pass(BufferedImage srcImage, BufferedImage dstImage, ResampleFilter filter, Orientation orientation) {
+            this(PixelLayout.of(toSupported(srcImage)), srcImage.getHeight(), srcImage.getWidth(),
+                    srcImage.getHeight(), layoutOf(dstImage), dstImage.getHeight(), filter, orientation);
+        }
+        
+        /**
+         * @param src first source rows
+         * @param srcHeight height of the whole source
+         * @param dst first destination rows
+         * @param dstHeight height of the whole destination
+         * @param filter
+         */
+        Pass(PixelLayout src, int srcHeight, PixelLayout dst, int dstHeight, ResampleFilter filter) {
+            this(src, srcHeight, src.width, srcHeight, dst, dstHeight, filter);
+        }
+        
+        /**
+         * @param src first source rows
+         * @param srcHeight height of the whole source
+         * @param srcWidthSpan source pixels the destination's width spans,
+         *        see WeightTable
+         * @param srcHeightSpan source rows the destination's height spans
+         * @param dst first destination rows
+         * @param dstHeight height of the whole destination
+         * @param filter
+         */
+        Pass(PixelLayout src, int srcHeight, double srcWidthSpan, double srcHeightSpan,
+                PixelLayout dst, int dstHeight, ResampleFilter filter) {
+            this(src, srcHeight, srcWidthSpan, srcHeightSpan, dst, dstHeight, filter, Orientation.NORMAL);
+        }
+        
+        /**
+         * As above, with dst the whole upright destination.
+         * 
+         * @param orientation how the source turns upright
+         */
+        Pass(PixelLayout src, int srcHeight, double srcWidthSpan, double srcHeightSpan,
+                PixelLayout dst, int dstHeight, ResampleFilter filter, Orientation orientation) {
+            this.src = src;
+            this.dst = dst;
+            this.orientation = orientation;
+            Dimension stored = orientation.turn(dst.width, dstHeight);
+            xWeights = new WeightTable(src.width, srcWidthSpan, stored.width, filter);
+            yWeights = new WeightTable(srcHeight, srcHeightSpan, stored.height, filter);
+            channels = src.channels();
+        }
+        
+        private static PixelLayout layoutOf(BufferedImage dstImage) {
+            PixelLayout dst = PixelLayout.of(dstImage);
+            if(dst == null) {
+                throw new IllegalArgumentException("Unsupported destination image: " + dstImage);
+            }
+            return dst;
+        }
+        
+        /**
+         * Fewest destination rows worth a band of their own: enough that
+         * the source rows only that band filters are at least 8 times the
+         * kernel's overlap with the next band.
+         */
+        int bandRows() {
+            long rows = 8L * yWeights.taps * yWeights.dstLength / yWeights.srcLength;
+            return (int)Math.max(MIN_BAND_ROWS, rows);
+        }
+        
+        /**
+         * Makes source row sy available in src. Rows are asked for in
+         * increasing order.
+         */
+        void loadSource(int sy) {
+            throw new IllegalStateException("Source row " + sy + " is not loaded");
+        }
+        
+        /**
+         * Called after destination row y has been written to dst.
+         */
+        void rowWritten(int y) {
+        }
+        
+        /**
+         * Fills destination rows y0 (inclusive) to y1 (exclusive).
+         */
+        void rows(int y0, int y1) {
+            int taps = yWeights.taps;
+            int rowLength = xWeights.dstLength * channels;
+            
+            ImagePool pool = ImagePool.shared();
+            
+            // ring of horizontally filtered source rows, row sy lives in slot sy % taps
+            int[][] ring = new int[taps][];
+            for(int k = 0; k < taps; k++) {
+                ring[k] = pool.acquireInts(rowLength);
+            }
+            int[] ringRow = new int[taps];
+            Arrays.fill(ringRow, -1);
+            
+            int[] acc = pool.acquireInts(rowLength);
+            int[] argb = src.bytes != null || src.isArgbInts() ? null : pool.acquireInts(src.width);
+            
+            try {
+                resample(y0, y1, ring, ringRow, acc, argb, rowLength);
+            } finally {
+                for(int[] row : ring) {
+                    pool.releaseInts(row);
+                }
+                pool.releaseInts(acc);
+                pool.releaseInts(argb);
+            }
+        }
+        
+        private void resample(int y0, int y1, int[][] ring, int[] ringRow, int[] acc, int[] argb, int rowLength) {
+            int taps = yWeights.taps;
+            for(int y = y0; y < y1; y++) {
+                int first = yWeights.start[y];
+                for(int k = 0; k < taps; k++) {
+                    int sy = first + k;
+                    int slot = sy % taps;
+                    if(ringRow[slot] != sy) {
+                        if(sy < srcY0 || sy >= srcY0 + src.height) {
+                            loadSource(sy);
+                        }
+                        horizontal(sy - srcY0, argb, ring[slot]);
+                        ringRow[slot] = sy;
+                    }
+                }
+                KERNELS.vertical(ring, first, yWeights.weights, y * taps, taps, acc, rowLength);
+                dst.writeRow(y - dstY0, acc, channels, OUT_BITS, orientation);
+                rowWritten(y);
+            }
+        }
+        
+        // sy is relative to the loaded source rows
+        private void horizontal(int sy, int[] argb, int[] out) {
+            int off = src.offset + sy * src.scanline;
+            
+            if(src.bytes != null) {
+                if(channels == 3) {
+                    KERNELS.horizontalBytes3(src, off, xWeights, out);
+                } else if(channels == 4) {
+                    KERNELS.horizontalBytes4(src, off, xWeights, out);
+                } else {
+                    KERNELS.horizontalBytes1(src.bytes, off + src.red, src.pixelStride, xWeights, out);
+                }
+                return;
+            }
+            
+            int[] px = src.ints;
+            if(argb != null) {
+                src.readRow(sy, argb);
+                px = argb;
+                off = 0;
+            }
+            if(channels == 4) {
+                KERNELS.horizontalArgb(px, off, xWeights, out, src.premultiplied);
+            } else {
+                KERNELS.horizontalRgb(px, off, xWeights, out);
+            }
+        }
+    }
+    
+    /**
+     * Destination rows y0 (inclusive) to y1 (exclusive) of a whole image
+     * pass, halved until the bands are under twice grain rows. Bands write
+     * disjoint rows of dst and each pass.rows() call has its own scratch.
+     */
+    private static final class Bands extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final transient Pass pass;
+        private final int y0;
+        private final int y1;
+        private final int grain;
+        
+        Bands(Pass pass, int y0, int y1, int grain) {
+            this.pass = pass;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.grain = grain;
+        }
+        
+        @Override
+        protected void compute() {
+            if(y1 - y0 < 2 * grain) {
+                pass.rows(y0, y1);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll(new Bands(pass, y0, mid, grain), new Bands(pass, mid, y1, grain));
+        }
+    }
+    
+    /**
+     * Vertical pass: weighted sum of taps filtered rows into the first
+     * length samples of acc.
+     */
+    static void vertical(int[][] ring, int first, int[] weights, int wi, int taps, int[] acc, int length) {
+        Arrays.fill(acc, 0, length, 0);
+        for(int k = 0; k < taps; k++) {
+            int w = weights[wi + k];
+            if(w == 0) {
+                continue;
+            }
+            int[] row = ring[(first + k) % taps];
+            for(int i = 0; i < length; i++) {
+                acc[i] += w * row[i];
+            }
+        }
+    }
+    
+    // Horizontal passes. Each output sample is the fixed point sum shifted
+    // down to Pass.ROW_BITS fraction bits.
+    private static final int DOWN = WeightTable.BITS - Pass.ROW_BITS;
+    private static final int HALF = 1 << (DOWN - 1);
+    
+    // 0xAARRGGBB ints to a, r*a, g*a, b*a
+    static void horizontalArgb(int[] px, int off, WeightTable table, int[] out, boolean premultiplied) {
+        int taps = table.taps;
+        int[] start = table.start;
+        int[] weights = table.weights;
+        
+        for(int x = 0, o = 0, wi = 0; x < table.dstLength; x++, o += 4, wi += taps) {
+            int s = off + start[x];
+            int a = 0, r = 0, g = 0, b = 0;
+            for(int k = 0; k < taps; k++) {
+                int p = px[s + k];
+                int w = weights[wi + k];
+                int pa = p >>> 24;
+                int pr = (p >> 16) & 0xFF;
+                int pg = (p >> 8) & 0xFF;
+                int pb = p & 0xFF;
+                if(!premultiplied) {
+                    pr = premultiply(pr, pa);
+                    pg = premultiply(pg, pa);
+                    pb = premultiply(pb, pa);
+                }
+                a += w * pa;
+                r += w * pr;
+                g += w * pg;
+                b += w * pb;
+            }
+            out[o] = (a + HALF) >> DOWN;
+            out[o + 1] = (r + HALF) >> DOWN;
+            out[o + 2] = (g + HALF) >> DOWN;
+            out[o + 3] = (b + HALF) >> DOWN;
+        }
+    }
+    
+    // 0x..RRGGBB ints to r, g, b
+    static void horizontalRgb(int[] px, int off, WeightTable table, int[] out) {
+        int taps = table.taps;
+        int[] start = table.start;
+        int[] weights = table.weights;
+        
+        for(int x = 0, o = 0, wi = 0; x < table.dstLength; x++, o += 3, wi += taps) {
+            int s = off + start[x];
+            int r = 0, g = 0, b = 0;
+            for(int k = 0; k < taps; k++) {
+                int p = px[s + k];
+                int w = weights[wi + k];
+                r += w * ((p >> 16) & 0xFF);
+                g += w * ((p >> 8) & 0xFF);
+                b += w * (p & 0xFF);
+            }
+            out[o] = (r + HALF) >> DOWN;
+            out[o + 1] = (g + HALF) >> DOWN;
+            out[o + 2] = (b + HALF) >> DOWN;
+        }
+    }
+    
+    // interleaved bytes (TYPE_3BYTE_BGR...) to r, g, b
+    static void horizontalBytes3(PixelLayout src, int off, WeightTable table, int[] out) {
+        byte[] px = src.bytes;
+        int stride = src.pixelStride;
+        int ro = src.red, go = src.green, bo = src.blue;
+        int taps = table.taps;
+        int[] start = table.start;
+        int[] weights = table.weights;
+        
+        for(int x = 0, o = 0, wi = 0; x < table.dstLength; x++, o += 3, wi += taps) {
+            int s = off + start[x] * stride;
+            int r = 0, g = 0, b = 0;
+            for(int k = 0; k < taps; k++, s += stride) {
+                int w = weights[wi + k];
+                r += w * (px[s + ro] & 0xFF);
+                g += w * (px[s + go] & 0xFF);
+                b += w * (px[s + bo] & 0xFF);
+            }
+            out[o] = (r + HALF) >> DOWN;
+            out[o + 1] = (g + HALF) >> DOWN;
+            out[o + 2] = (b + HALF) >> DOWN;
+        }
+    }
+    
+    // interleaved bytes with alpha (TYPE_4BYTE_ABGR...) to a, r*a, g*a, b*a
+    static void horizontalBytes4(PixelLayout src, int off, WeightTable table, int[] out) {
+        byte[] px = src.bytes;
+        int stride = src.pixelStride;
+        int ao = src.alphaPos, ro = src.red, go = src.green, bo = src.blue;
+        boolean premultiplied = src.premultiplied;
+        int taps = table.taps;
+        int[] start = table.start;
+        int[] weights = table.weights;
+        
+        for(int x = 0, o = 0, wi = 0; x < table.dstLength; x++, o += 4, wi += taps) {
+            int s = off + start[x] * stride;
+            int a = 0, r = 0, g = 0, b = 0;
+            for(int k = 0; k < taps; k++, s += stride) {
+                int w = weights[wi + k];
+                int pa = px[s + ao] & 0xFF;
+                int pr = px[s + ro] & 0xFF;
+                int pg = px[s + go] & 0xFF;
+                int pb = px[s + bo] & 0xFF;
+                if(!premultiplied) {
+                    pr = premultiply(pr, pa);
+                    pg = premultiply(pg, pa);
+                    pb = premultiply(pb, pa);
+                }
+                a += w * pa;
+                r += w * pr;
+                g += w * pg;
+                b += w * pb;
+            }
+            out[o] = (a + HALF) >> DOWN;
+            out[o + 1] = (r + HALF) >> DOWN;
+            out[o + 2] = (g + HALF) >> DOWN;
+            out[o + 3] = (b + HALF) >> DOWN;
+        }
+    }
+    
+    // one byte sample per pixel (TYPE_BYTE_GRAY)
+    static void horizontalBytes1(byte[] px, int off, int stride, WeightTable table, int[] out) {
+        int taps = table.taps;
+        int[] start = table.start;
+        int[] weights = table.weights;
+        
+        for(int x = 0, wi = 0; x < table.dstLength; x++, wi += taps) {
+            int s = off + start[x] * stride;
+            int v = 0;
+            for(int k = 0; k < taps; k++, s += stride) {
+                v += weights[wi + k] * (px[s] & 0xFF);
+            }
+            out[x] = (v + HALF) >> DOWN;
+        }
+    }
+    
+    // c * a / 255, rounded
+    static int premultiply(int c, int a) {
+        int t = c * a + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Command line front end for batch resizing, for servers with no display.
+ * 
+ * Sources can be files, folders (the images directly inside) or globs such
+ * as photos/**&#47;*.jpg. Each output goes to a resized folder next to its
+ * source, or all of them to the --output folder. When the batch is done the
+ * throughput, the time spent in each stage and the p50/p99 time per image
+ * are printed, and with --metrics the time, bytes and pixels of each
+ * operation by image format, see ResizeMetrics. With --readers or
+ * --writers the batch runs as a pipeline, see StagedResizer, and the queue
+ * depths are printed too. --bands splits each image across the cores as
+ * well, which helps when there are fewer images than cores. The exit code
+ * is 1 if any image failed, 2 for bad arguments, sources that don't exist
+ * or can't be listed, or two sources that would write the same output.
+ * 
+ * @author gtanner
+ */
+public class ResizeCommand {
+    
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: ResizeCommand [options] <file|folder|glob>...",
+            "  --width <px>        max width",
+            "  --height <px>       max height",
+            "  --percent <n>       scale to n percent instead of a max size",
+            "  --target-kb <kb>    largest jpeg written, 0 for no limit (default "
+                    + JpegSizeEncoder.DEFAULT_MAX_BYTES / 1024 + ")",
+            "  --threads <n>       images resized at the same time (default "
+                    + Runtime.getRuntime().availableProcessors() + ")",
+            "  --readers <n>       run as a pipeline with n threads reading files",
+            "  --writers <n>       run as a pipeline with n threads encoding and writing",
+            "  --bands             also split each resize into row bands on all cores, for a few huge images",
+            "  --format <name>     output format: jpg, png, bmp, gif (default jpg)",
+            "  --filter <name>     box, bilinear, mitchell or lanczos3 (default lanczos3)",
+            "  --output <folder>   write all outputs to this folder",
+            "  --metrics <s>       print per stage and format metrics every s seconds and at the end,",
+            "                      0 for only at the end");
+    
+    private final ImageResizer resizer = new ImageResizer();
+    private final List<String> sources = new ArrayList<>();
+    private final Set<Path> files = new LinkedHashSet<>();
+    private int width = Integer.MAX_VALUE;
+    private int height = Integer.MAX_VALUE;
+    private double percent;
+    private Path outputDir;
+    private long metricsSeconds = -1;
+    
+    public static void main(String[] args) throws IOException {
+        ResizeCommand command = new ResizeCommand();
+        try {
+            command.parse(args);
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        
+        if(command.metricsSeconds > 0) {
+            ResizeMetrics.shared().dumpEvery(command.metricsSeconds, TimeUnit.SECONDS, System.out);
+        }
+        BatchResizer batch = command.resizer.newBatch();
+        BatchSummary summary = command.run(batch);
+        System.out.println(summary);
+        System.out.println(summary.stageReport());
+        if(command.resizer.isPipelined()) {
+            System.out.println(batch);
+        }
+        System.out.println(ImagePool.shared());
+        System.out.println(MemoryBudget.shared());
+        System.out.println("Resample kernels: " + Resampler.KERNELS);
+        if(command.metricsSeconds >= 0) {
+            ResizeMetrics.shared().stopDump();
+            System.out.println(ResizeMetrics.shared().getReport());
+        }
+        System.exit(summary.getFailures() > 0 ? 1 : 0);
+    }
+    
+    private void parse(String[] args) {
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(!arg.startsWith("--")) {
+                sources.add(arg);
+                continue;
+            }
+            if(arg.equals("--bands")) {
+                resizer.setParallelBands(true);
+                continue;
+            }
+            if(i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch(arg) {
+                case "--width":
+                    width = Integer.parseInt(value);
+                    if(width < 1) {
+                        throw new IllegalArgumentException("--width must be at least 1: " + value);
+                    }
+                    break;
+                case "--height":
+                    height = Integer.parseInt(value);
+                    if(height < 1) {
+                        throw new IllegalArgumentException("--height must be at least 1: " + value);
+                    }
+                    break;
+                case "--percent":
+                    percent = Double.parseDouble(value);
+                    // also catches NaN
+                    if(!(percent > 0)) {
+                        throw new IllegalArgumentException("--percent must be more than 0: " + value);
+                    }
+                    break;
+                case "--target-kb":
+                    resizer.setMaxFileSize(Long.parseLong(value) * 1024);
+                    break;
+                case "--threads":
+                    resizer.setConcurrency(Integer.parseInt(value));
+                    break;
+                case "--readers":
+                    resizer.setReaders(Integer.parseInt(value));
+                    resizer.setPipelined(true);
+                    break;
+                case "--writers":
+                    resizer.setWriters(Integer.parseInt(value));
+                    resizer.setPipelined(true);
+                    break;
+                case "--format":
+                    resizer.setFormat(value);
+                    break;
+                case "--filter":
+                    resizer.setFilter(ResampleFilter.valueOf(value.toUpperCase()));
+                    break;
+                case "--output":
+                    outputDir = Paths.get(value);
+                    break;
+                case "--metrics":
+                    metricsSeconds = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        
+        if(sources.isEmpty()) {
+            throw new IllegalArgumentException("No files given");
+        }
+        if(percent == 0 && width == Integer.MAX_VALUE && height == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Give --width, --height or --percent");
+        }
+        if(percent > 0 && (width != Integer.MAX_VALUE || height != Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("Give either --percent or --width/--height, not both");
+        }
+        
+        for(String source : sources) {
+            try {
+                files.addAll(expand(source));
+            } catch(NoSuchFileException e) {
+                throw new IllegalArgumentException("No such file or folder: " + source);
+            } catch(IOException e) {
+                throw new IllegalArgumentException("Can't read " + source + ": " + e);
+            }
+        }
+        
+        // Outputs are named after their sources, so with --output two
+        // photo.jpg from different folders would overwrite each other
+        Map<Path, Path> written = new HashMap<>();
+        for(Path p : files) {
+            Path other = written.put(output(p), p);
+            if(other != null) {
+                throw new IllegalArgumentException(other + " and " + p + " would both be written to " + output(p));
+            }
+        }
+    }
+    
+    // Where the resized source goes
+    private Path output(Path source) {
+        String name = ImageResizer.outputName(source, resizer.getFormat());
+        return outputDir != null
+                ? outputDir.resolve(name)
+                : source.resolveSibling(ImageResizer.OUTPUT_FOLDER).resolve(name);
+    }
+    
+    private BatchSummary run(BatchResizer batch) throws IOException {
+        RenditionSpec spec = percent > 0
+                ? RenditionSpec.percent("cli", percent / 100)
+                : RenditionSpec.fit("cli", width, height);
+        spec = spec.withMaxBytes(resizer.getMaxFileSize());
+        
+        if(outputDir != null) {
+            Files.createDirectories(outputDir);
+        } else {
+            for(Path p : files) {
+                Files.createDirectories(p.resolveSibling(ImageResizer.OUTPUT_FOLDER));
+            }
+        }
+        
+        return batch.run(new ArrayList<>(files), this::output, spec, p -> { });
+    }
+    
+    /**
+     * Images named by one command line argument.
+     * 
+     * @param source a file, a folder or a glob
+     * @return absolute paths of the images
+     */
+    static List<Path> expand(String source) throws IOException {
+        int wildcard = firstWildcard(source);
+        List<Path> images = new ArrayList<>();
+        
+        if(wildcard < 0) {
+            Path path = Paths.get(source).toAbsolutePath().normalize();
+            if(Files.isDirectory(path)) {
+                images.addAll(ImageResizer.listImages(path));
+            } else if(Files.isRegularFile(path)) {
+                images.add(path);
+            } else {
+                throw new NoSuchFileException(source);
+            }
+            return images;
+        }
+        
+        // Walk from the folder before the first wildcard, matching the rest
+        int slash = Math.max(source.lastIndexOf('/', wildcard), source.lastIndexOf(File.separatorChar, wildcard));
+        Path base = Paths.get(slash < 0 ? "." : source.substring(0, slash + 1)).toAbsolutePath().normalize();
+        String pattern = source.substring(slash + 1);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        int depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("[/\\\\]").length;
+        
+        try(Stream<Path> walk = Files.walk(base, depth)) {
+            walk.filter(p -> Files.isRegularFile(p)
+                    && ImageResizer.isImageFile(p)
+                    && matcher.matches(base.relativize(p))
+                    // outputs of an earlier run
+                    && !p.getParent().getFileName().toString().equals(ImageResizer.OUTPUT_FOLDER))
+                    .forEach(images::add);
+        }
+        return images;
+    }
+    
+    private static int firstWildcard(String source) {
+        for(int i = 0; i < source.length(); i++) {
+            if("*?[{".indexOf(source.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which source files have already been resized, and how.
+ * 
+ * For every source the manifest keeps the last modified time and size (the
+ * same values FileAndDirectoryInfo prints) plus the resize parameters. A
+ * file whose time, size and parameters match, and whose output still
+ * exists, doesn't need to be decoded again. The manifest is a tab separated
+ * text file kept in the output folder.
+ * 
+ * @author gtanner
+ */
+public class ResizeManifest {
+    
+    public static final String FILE_NAME = ".resize-manifest";
+    
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    
+    private ResizeManifest(Path file) {
+        this.file = file;
+    }
+    
+    /**
+     * Reads the manifest in an output folder, or starts an empty one.
+     * 
+     * @param outputDir
+     * @return the manifest
+     */
+    public static ResizeManifest load(Path outputDir) throws IOException {
+        ResizeManifest manifest = new ResizeManifest(outputDir.resolve(FILE_NAME));
+        if(Files.exists(manifest.file)) {
+            for(String line : Files.readAllLines(manifest.file, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if(parts.length == 4) {
+                    try {
+                        manifest.entries.put(parts[0],
+                                new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+                    } catch(NumberFormatException nfe) {
+                        // damaged line, the file just gets resized again
+                    }
+                }
+            }
+        }
+        return manifest;
+    }
+    
+    /**
+     * @param source
+     * @param attributes of the source, read while scanning the folder
+     * @param parameters the resize settings, see ImageResizer
+     * @param output where the resized file should be
+     * @return true if the output was made from this version of the source
+     *         with these settings
+     */
+    public boolean isCurrent(Path source, BasicFileAttributes attributes, String parameters, Path output) {
+        Entry entry = entries.get(source.getFileName().toString());
+        return entry != null
+                && entry.modified == attributes.lastModifiedTime().toMillis()
+                && entry.size == attributes.size()
+                && entry.parameters.equals(parameters)
+                && Files.exists(output);
+    }
+    
+    /**
+     * Records a source as resized. Safe to call from worker threads.
+     * 
+     * @param source
+     * @param attributes of the source, read before it was resized
+     * @param parameters
+     */
+    public void record(Path source, BasicFileAttributes attributes, String parameters) {
+        entries.put(source.getFileName().toString(),
+                new Entry(attributes.lastModifiedTime().toMillis(), attributes.size(), parameters));
+    }
+    
+    /**
+     * Forgets sources that are no longer in the folder.
+     * 
+     * @param names file names of the current sources
+     */
+    public void retain(Collection<String> names) {
+        entries.keySet().retainAll(names);
+    }
+    
+    public void save() throws IOException {
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try(BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for(Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.write(e.getKey() + "\t" + entry.modified + "\t" + entry.size + "\t" + entry.parameters);
+                out.newLine();
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private static final class Entry {
+        final long modified;
+        final long size;
+        final String parameters;
+        
+        Entry(long modified, long size, String parameters) {
+            this.modified = modified;
+            this.size = size;
+            this.parameters = parameters;
+        }
+    }
+}
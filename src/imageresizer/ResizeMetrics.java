@@ -0,0 +1,331 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Latency, bytes and pixels of every operation of every resize, by format,
+ * and errors by cause, for the life of the process.
+ * 
+ * Where BatchSummary totals one batch, these keep going across batches and
+ * break each operation down by image format, so a slow format or a
+ * regression in one stage stands out. Each record is a few Histogram
+ * updates. The shared instance is registered with JMX, see
+ * ResizeMetricsMXBean, and can print its report periodically with
+ * dumpEvery().
+ * 
+ * @author gtanner
+ */
+public class ResizeMetrics implements ResizeMetricsMXBean {
+    
+    /** The timed parts of a resize. */
+    public enum Operation {
+        READ, PROBE, DECODE, RESAMPLE, CONVERT, ENCODE, WRITE
+    }
+    
+    private static final Logger LOG = Logger.getLogger(ResizeMetrics.class.getName());
+    
+    private static final ResizeMetrics SHARED = new ResizeMetrics();
+    
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(SHARED, new ObjectName("imageresizer:type=ResizeMetrics"));
+        } catch(JMException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Could not register the resize metrics with JMX", e);
+        }
+    }
+    
+    // only read after the constructor, so an EnumMap is safe to share
+    private final Map<Operation, ConcurrentMap<String, Series>> series = new EnumMap<>(Operation.class);
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    
+    private ScheduledExecutorService dumper;
+    private ScheduledFuture<?> dump;
+    
+    public ResizeMetrics() {
+        for(Operation op : Operation.values()) {
+            series.put(op, new ConcurrentHashMap<>());
+        }
+    }
+    
+    /**
+     * @return the metrics recorded by the resizers, registered with JMX
+     */
+    public static ResizeMetrics shared() {
+        return SHARED;
+    }
+    
+    /**
+     * Records one successful operation.
+     * 
+     * @param op
+     * @param format image format, see formatOf()
+     * @param nanos time taken
+     * @param bytes bytes read or written, 0 if it doesn't apply
+     * @param pixels pixels processed, 0 if it doesn't apply
+     */
+    public void record(Operation op, String format, long nanos, long bytes, long pixels) {
+        Map<String, Series> byFormat = series.get(op);
+        Series s = byFormat.get(format);
+        if(s == null) {
+            s = byFormat.computeIfAbsent(format, f -> new Series());
+        }
+        s.nanos.record(nanos);
+        if(bytes > 0) {
+            s.bytes.record(bytes);
+        }
+        if(pixels > 0) {
+            s.pixels.record(pixels);
+        }
+    }
+    
+    /**
+     * Counts a failed operation by the class of its innermost cause.
+     * 
+     * @param op
+     * @param format image format, see formatOf()
+     * @param e
+     */
+    public void recordError(Operation op, String format, Throwable e) {
+        Throwable cause = e;
+        while(cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        errors.computeIfAbsent(key(op, format) + "/" + cause.getClass().getSimpleName(), k -> new LongAdder()).increment();
+    }
+    
+    /**
+     * @param file
+     * @return the lower case extension, jpg as jpeg and tif as tiff
+     */
+    public static String formatOf(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "unknown" : normalize(name.substring(dot + 1));
+    }
+    
+    /**
+     * @param format a format or extension such as "JPG"
+     * @return the name used for it in the metrics
+     */
+    public static String normalize(String format) {
+        String f = format.toLowerCase();
+        switch(f) {
+            case "jpg":
+            case "jpe":
+                return "jpeg";
+            case "tif":
+                return "tiff";
+            default:
+                return f;
+        }
+    }
+    
+    /**
+     * @param image
+     * @return a short name for the image's type, for the convert operation
+     */
+    static String typeOf(BufferedImage image) {
+        switch(image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+                return "int_rgb";
+            case BufferedImage.TYPE_INT_ARGB:
+                return "int_argb";
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+                return "int_argb_pre";
+            case BufferedImage.TYPE_INT_BGR:
+                return "int_bgr";
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return "3byte_bgr";
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return "4byte_abgr";
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                return "4byte_abgr_pre";
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return "byte_gray";
+            case BufferedImage.TYPE_USHORT_GRAY:
+                return "ushort_gray";
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                return "byte_indexed";
+            case BufferedImage.TYPE_BYTE_BINARY:
+                return "byte_binary";
+            default:
+                return "custom";
+        }
+    }
+    
+    /**
+     * Prints report() every period, on a daemon thread, when something was
+     * recorded since the last time. Replaces an earlier dump.
+     * 
+     * @param period
+     * @param unit
+     * @param out
+     */
+    public synchronized void dumpEvery(long period, TimeUnit unit, PrintStream out) {
+        stopDump();
+        if(dumper == null) {
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "resize-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        long[] last = {-1};
+        dump = dumper.scheduleAtFixedRate(() -> {
+            long total = totalCount();
+            if(total != last[0]) {
+                last[0] = total;
+                out.println(getReport());
+            }
+        }, period, period, unit);
+    }
+    
+    public synchronized void stopDump() {
+        if(dump != null) {
+            dump.cancel(false);
+            dump = null;
+        }
+    }
+    
+    private long totalCount() {
+        long total = 0;
+        for(Map<String, Series> byFormat : series.values()) {
+            for(Series s : byFormat.values()) {
+                total += s.nanos.getCount();
+            }
+        }
+        for(LongAdder n : errors.values()) {
+            total += n.sum();
+        }
+        return total;
+    }
+    
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        forEach((key, s) -> counts.put(key, s.nanos.getCount()));
+        return counts;
+    }
+    
+    @Override
+    public Map<String, Double> getMeanMillis() {
+        return collect(s -> s.nanos.getMean() / 1e6);
+    }
+    
+    @Override
+    public Map<String, Double> getP50Millis() {
+        return collect(s -> s.nanos.percentile(50) / 1e6);
+    }
+    
+    @Override
+    public Map<String, Double> getP99Millis() {
+        return collect(s -> s.nanos.percentile(99) / 1e6);
+    }
+    
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        return collect(s -> s.nanos.getMax() / 1e6);
+    }
+    
+    @Override
+    public Map<String, Double> getMegabytesPerSecond() {
+        return collect(s -> s.rate(s.bytes) / (1024 * 1024));
+    }
+    
+    @Override
+    public Map<String, Double> getMegapixelsPerSecond() {
+        return collect(s -> s.rate(s.pixels) / 1e6);
+    }
+    
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((key, n) -> counts.put(key, n.sum()));
+        return counts;
+    }
+    
+    /**
+     * @return one line per operation and format, in the order of a resize,
+     *         then the errors
+     */
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder("Resize metrics:");
+        forEach((key, s) -> {
+            sb.append(String.format("%n  %-22s %6d, mean %.1fms, p50 %.1fms, p99 %.1fms, max %.1fms",
+                    key, s.nanos.getCount(), s.nanos.getMean() / 1e6, s.nanos.percentile(50) / 1e6,
+                    s.nanos.percentile(99) / 1e6, s.nanos.getMax() / 1e6));
+            if(s.bytes.getCount() > 0) {
+                sb.append(String.format(", %.1f MB/s", s.rate(s.bytes) / (1024 * 1024)));
+            }
+            if(s.pixels.getCount() > 0) {
+                sb.append(String.format(", %.1f MP/s", s.rate(s.pixels) / 1e6));
+            }
+        });
+        getErrors().forEach((key, n) -> sb.append(String.format("%n  error %s: %d", key, n)));
+        return sb.toString();
+    }
+    
+    @Override
+    public void reset() {
+        for(Map<String, Series> byFormat : series.values()) {
+            byFormat.clear();
+        }
+        errors.clear();
+    }
+    
+    // Operations in enum order, formats sorted
+    private void forEach(SeriesConsumer action) {
+        for(Map.Entry<Operation, ConcurrentMap<String, Series>> e : series.entrySet()) {
+            new TreeMap<>(e.getValue()).forEach((format, s) -> action.accept(key(e.getKey(), format), s));
+        }
+    }
+    
+    private Map<String, Double> collect(ToDoubleFunction<Series> value) {
+        Map<String, Double> values = new TreeMap<>();
+        forEach((key, s) -> values.put(key, value.applyAsDouble(s)));
+        return values;
+    }
+    
+    private static String key(Operation op, String format) {
+        return op.name().toLowerCase() + "/" + format;
+    }
+    
+    private interface SeriesConsumer {
+        void accept(String key, Series s);
+    }
+    
+    // One operation on one format
+    private static final class Series {
+        final Histogram nanos = new Histogram();
+        final Histogram bytes = new Histogram();
+        final Histogram pixels = new Histogram();
+        
+        // Units per second spent in the operation
+        double rate(Histogram units) {
+            long time = nanos.getSum();
+            return time > 0 ? units.getSum() * 1e9 / time : 0;
+        }
+    }
+}
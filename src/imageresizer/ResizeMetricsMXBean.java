@@ -0,0 +1,38 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import java.util.Map;
+
+/**
+ * JMX view of ResizeMetrics, registered as imageresizer:type=ResizeMetrics.
+ * Keys are operation/format, for example "decode/jpeg"; error keys add the
+ * exception, for example "decode/png/IIOException".
+ * 
+ * @author gtanner
+ */
+public interface ResizeMetricsMXBean {
+    
+    Map<String, Long> getCounts();
+    
+    Map<String, Double> getMeanMillis();
+    
+    Map<String, Double> getP50Millis();
+    
+    Map<String, Double> getP99Millis();
+    
+    Map<String, Double> getMaxMillis();
+    
+    // Bytes read, decoded from, encoded or written per second of the operation
+    Map<String, Double> getMegabytesPerSecond();
+    
+    // Pixels decoded, resampled, converted or encoded per second of the operation
+    Map<String, Double> getMegapixelsPerSecond();
+    
+    Map<String, Long> getErrors();
+    
+    String getReport();
+    
+    void reset();
+}
@@ -0,0 +1,938 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes a jpeg straight to 1/2, 1/4 or 1/8 of its size from the DCT
+ * coefficients, as libjpeg's scaled IDCT does.
+ * 
+ * ImageIO's reader does the full 8x8 inverse DCT, upsampling and color
+ * conversion of every pixel even when asked to subsample, then drops most
+ * of them. The 8x8 block of coefficients already holds the block at every
+ * lower resolution: its top left N x N coefficients, scaled by N / 8, are
+ * the N x N DCT of the block shrunk N / 8 times. So each block goes through
+ * a 4x4 or 2x2 inverse DCT, or at 1/8 none at all since the DC coefficient
+ * is the block's average, and only the reduced pixels are upsampled and
+ * color converted. The Huffman decoding of the coefficients is the same
+ * work as before, the rest mostly goes.
+ * 
+ * Handles baseline, extended and progressive Huffman coded jpegs with 8 bit
+ * samples and 1 (gray) or 3 (YCbCr, or RGB per the Adobe marker)
+ * components, which is what cameras and most software write. Anything else
+ * (arithmetic coding, lossless, CMYK) gives null so the caller can use
+ * ImageIO. Like ImageIO's default image type, the result ignores any
+ * embedded ICC profile. A stream cut short decodes to mid gray from where
+ * the data ends, as in libjpeg.
+ * 
+ * The whole file is in memory: a MappedImageInputStream's buffer is used
+ * as is, other streams are read into an array. A progressive jpeg keeps
+ * every coefficient until its last scan, 2 bytes per sample.
+ * 
+ * @author gtanner
+ */
+final class ScaledJpegDecoder {
+    
+    // natural (row major) index of each zigzag position, with slack for
+    // corrupt runs that go past the end
+    private static final int[] NATURAL = {
+        0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+        12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63,
+        63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63, 63
+    };
+    
+    // YCbCr to RGB, ITU-R BT.601 full range as in JFIF, in libjpeg's 16
+    // bit fixed point. The green terms are left scaled so their sum rounds
+    // once.
+    private static final int[] CR_RED = new int[256];
+    private static final int[] CB_BLUE = new int[256];
+    private static final int[] CR_GREEN = new int[256];
+    private static final int[] CB_GREEN = new int[256];
+    
+    static {
+        for(int i = 0; i < 256; i++) {
+            int c = i - 128;
+            CR_RED[i] = (91881 * c + 32768) >> 16;
+            CB_BLUE[i] = (116130 * c + 32768) >> 16;
+            CR_GREEN[i] = -46802 * c;
+            CB_GREEN[i] = -22554 * c + 32768;
+        }
+    }
+    
+    // The n point inverse DCT of an 8 point JPEG block's first n
+    // coefficients, scaled by n / 8, has basis c(u) / 2 * cos((2x + 1)u pi
+    // / 2n) with c(0) = 1 / sqrt(2)
+    private static final float K = (float)Math.sqrt(0.125);
+    private static final float C1 = (float)(Math.cos(Math.PI / 8) / 2);
+    private static final float C3 = (float)(Math.cos(3 * Math.PI / 8) / 2);
+    
+    // bits looked up at once when decoding a Huffman code
+    private static final int LOOKUP_BITS = 9;
+    
+    private final ByteBuffer data;
+    // output samples per block side: 8 / factor
+    private final int n;
+    
+    private final int[][] quant = new int[4][];
+    private final Huffman[] dcTables = new Huffman[4];
+    private final Huffman[] acTables = new Huffman[4];
+    private Component[] components;
+    private boolean progressive;
+    private int width;
+    private int height;
+    private int maxH;
+    private int maxV;
+    private int mcusPerLine;
+    private int mcusPerColumn;
+    private int restartInterval;
+    // Adobe APP14 color transform, -1 without the marker
+    private int adobeTransform = -1;
+    private int eobRun;
+    private boolean scanned;
+    
+    // entropy coded data reader
+    private int pos;
+    private long bits;
+    private int bitCount;
+    private boolean atMarker;
+    // zero bits at the end of the buffer that aren't data
+    private int padding;
+    
+    private ScaledJpegDecoder(ByteBuffer data, int n) {
+        this.data = data;
+        this.n = n;
+    }
+    
+    /**
+     * Decodes a jpeg reduced by factor. The stream is left where it was.
+     * 
+     * @param iis
+     * @param start stream position of the jpeg's SOI marker
+     * @param factor 2, 4, 8 or more, a power of two. Past 8 the 1/8 image
+     *        is box reduced the rest of the way.
+     * @return the reduced image, TYPE_3BYTE_BGR or TYPE_BYTE_GRAY with
+     *         ceil(width / factor) x ceil(height / factor) pixels, or null
+     *         if the jpeg uses something this decoder doesn't handle
+     * @throws IOException if the stream can't be read or the data is corrupt
+     */
+    static BufferedImage read(ImageInputStream iis, long start, int factor) throws IOException {
+        if(factor < 2 || Integer.bitCount(factor) != 1) {
+            throw new IllegalArgumentException("Bad factor " + factor);
+        }
+        long position = iis.getStreamPosition();
+        ByteBuffer jpeg;
+        try {
+            iis.seek(start);
+            jpeg = iis instanceof MappedImageInputStream
+                    ? ((MappedImageInputStream)iis).remaining()
+                    : readAll(iis);
+        } finally {
+            iis.seek(position);
+        }
+        
+        BufferedImage image;
+        try {
+            image = new ScaledJpegDecoder(jpeg, 8 / Math.min(8, factor)).decode();
+        } catch(IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt jpeg", e);
+        }
+        if(image == null || factor <= 8) {
+            return image;
+        }
+        return BoxReducer.reduce(image, factor / 8, factor / 8);
+    }
+    
+    private static ByteBuffer readAll(ImageInputStream iis) throws IOException {
+        // one spare byte so a known length reads without growing
+        long known = iis.length() - iis.getStreamPosition();
+        byte[] buffer = new byte[iis.length() > 0 ? (int)known + 1 : 64 * 1024];
+        int length = 0;
+        int read;
+        while((read = iis.read(buffer, length, buffer.length - length)) > 0) {
+            length += read;
+            if(length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+    
+    // Reads the markers, decodes every scan and builds the image
+    private BufferedImage decode() throws IOException {
+        pos = data.position();
+        if(u8(pos) != 0xFF || u8(pos + 1) != 0xD8) {
+            throw new IOException("Not a jpeg");
+        }
+        pos += 2;
+        
+        while(true) {
+            int marker = nextMarker();
+            if(marker == 0xD9) {
+                break;
+            }
+            int length = u16(pos);
+            int segment = pos + 2;
+            int end = pos + length;
+            switch(marker) {
+                case 0xC0:
+                case 0xC1:
+                case 0xC2:
+                    progressive = marker == 0xC2;
+                    if(!readFrame(segment)) {
+                        return null;
+                    }
+                    break;
+                case 0xC4:
+                    readHuffmanTables(segment, end);
+                    break;
+                case 0xDB:
+                    readQuantTables(segment, end);
+                    break;
+                case 0xDD:
+                    restartInterval = u16(segment);
+                    break;
+                case 0xDA:
+                    if(components == null) {
+                        throw new IOException("Scan before frame");
+                    }
+                    pos = end;
+                    readScan(segment);
+                    continue;
+                case 0xEE:
+                    if(length >= 14 && u8(segment) == 'A' && u8(segment + 1) == 'd' && u8(segment + 2) == 'o'
+                            && u8(segment + 3) == 'b' && u8(segment + 4) == 'e') {
+                        adobeTransform = u8(segment + 11);
+                    }
+                    break;
+                case 0xC3:
+                case 0xC5:
+                case 0xC6:
+                case 0xC7:
+                case 0xC9:
+                case 0xCA:
+                case 0xCB:
+                case 0xCD:
+                case 0xCE:
+                case 0xCF:
+                    // lossless, hierarchical or arithmetic coded
+                    return null;
+                default:
+                    // APPn, comments and anything else with a length
+                    break;
+            }
+            pos = end;
+        }
+        if(components == null) {
+            throw new IOException("No frame");
+        }
+        
+        if(progressive) {
+            for(Component c : components) {
+                c.idctAll();
+            }
+        }
+        return toImage();
+    }
+    
+    // Finds the next marker from pos, skipping fill bytes, and moves past it
+    private int nextMarker() throws IOException {
+        int limit = data.limit();
+        while(pos + 1 < limit) {
+            if(u8(pos) == 0xFF) {
+                int marker = u8(pos + 1);
+                if(marker != 0 && marker != 0xFF && (marker < 0xD0 || marker > 0xD7)) {
+                    pos += 2;
+                    return marker;
+                }
+            }
+            pos++;
+        }
+        if(scanned) {
+            // truncated after some image data, keep what there is
+            return 0xD9;
+        }
+        throw new IOException("Truncated jpeg");
+    }
+    
+    private boolean readFrame(int p) throws IOException {
+        if(components != null) {
+            throw new IOException("Second frame");
+        }
+        if(u8(p) != 8) {
+            // 12 bit samples
+            return false;
+        }
+        height = u16(p + 1);
+        width = u16(p + 3);
+        int count = u8(p + 5);
+        if(width == 0 || height == 0) {
+            throw new IOException("Bad jpeg size " + width + "x" + height);
+        }
+        if(count != 1 && count != 3) {
+            return false;
+        }
+        components = new Component[count];
+        for(int i = 0; i < count; i++) {
+            int q = p + 6 + i * 3;
+            int sampling = u8(q + 1);
+            Component c = new Component(u8(q), sampling >> 4, sampling & 15, u8(q + 2) & 3);
+            if(c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) {
+                throw new IOException("Bad sampling factors");
+            }
+            components[i] = c;
+            maxH = Math.max(maxH, c.h);
+            maxV = Math.max(maxV, c.v);
+        }
+        mcusPerLine = ceilDiv(width, 8 * maxH);
+        mcusPerColumn = ceilDiv(height, 8 * maxV);
+        for(Component c : components) {
+            long blocks = (long)mcusPerLine * c.h * mcusPerColumn * c.v;
+            if(blocks * (progressive ? 64 : n * n) > Integer.MAX_VALUE - 8) {
+                // more samples than an array holds
+                return false;
+            }
+        }
+        for(Component c : components) {
+            c.allocate();
+        }
+        return true;
+    }
+    
+    private void readQuantTables(int p, int end) throws IOException {
+        while(p < end) {
+            int precision = u8(p) >> 4;
+            int[] table = new int[64];
+            for(int k = 0; k < 64; k++) {
+                table[k] = precision == 0 ? u8(p + 1 + k) : u16(p + 1 + k * 2);
+            }
+            quant[u8(p) & 3] = table;
+            p += 1 + (precision == 0 ? 64 : 128);
+        }
+    }
+    
+    private void readHuffmanTables(int p, int end) throws IOException {
+        while(p < end) {
+            int index = u8(p);
+            int[] counts = new int[17];
+            int total = 0;
+            for(int l = 1; l <= 16; l++) {
+                counts[l] = u8(p + l);
+                total += counts[l];
+            }
+            int[] values = new int[total];
+            for(int i = 0; i < total; i++) {
+                values[i] = u8(p + 17 + i);
+            }
+            Huffman table = new Huffman(counts, values);
+            if(index >> 4 == 0) {
+                dcTables[index & 3] = table;
+            } else {
+                acTables[index & 3] = table;
+            }
+            p += 17 + total;
+        }
+    }
+    
+    private void readScan(int p) throws IOException {
+        int count = u8(p);
+        Component[] scan = new Component[count];
+        for(int i = 0; i < count; i++) {
+            int id = u8(p + 1 + i * 2);
+            int tables = u8(p + 2 + i * 2);
+            for(Component c : components) {
+                if(c.id == id) {
+                    scan[i] = c;
+                }
+            }
+            if(scan[i] == null) {
+                throw new IOException("Scan of unknown component " + id);
+            }
+            scan[i].dc = dcTables[tables >> 4];
+            scan[i].ac = acTables[tables & 15 & 3];
+        }
+        int q = p + 1 + count * 2;
+        int ss = u8(q);
+        int se = u8(q + 1);
+        int ah = u8(q + 2) >> 4;
+        int al = u8(q + 2) & 15;
+        if(!progressive) {
+            ss = 0;
+            se = 63;
+        } else if(ss > se || se > 63 || (ss > 0 && count != 1)) {
+            throw new IOException("Bad progressive scan");
+        }
+        
+        bits = 0;
+        bitCount = 0;
+        atMarker = false;
+        padding = 0;
+        eobRun = 0;
+        scanned = true;
+        for(Component c : scan) {
+            c.pred = 0;
+        }
+        
+        if(count == 1) {
+            // not interleaved: the component's blocks in raster order
+            Component c = scan[0];
+            int lines = ceilDiv(ceilDiv(width * c.h, maxH), 8);
+            int columns = ceilDiv(ceilDiv(height * c.v, maxV), 8);
+            int total = lines * columns;
+            for(int b = 0; b < total; b++) {
+                if(restartInterval > 0 && b > 0 && b % restartInterval == 0) {
+                    restart(scan);
+                }
+                decodeBlock(c, b / lines, b % lines, ss, se, ah, al);
+            }
+        } else {
+            int total = mcusPerLine * mcusPerColumn;
+            for(int m = 0; m < total; m++) {
+                if(restartInterval > 0 && m > 0 && m % restartInterval == 0) {
+                    restart(scan);
+                }
+                int mcuRow = m / mcusPerLine;
+                int mcuColumn = m % mcusPerLine;
+                for(Component c : scan) {
+                    for(int v = 0; v < c.v; v++) {
+                        for(int h = 0; h < c.h; h++) {
+                            decodeBlock(c, mcuRow * c.v + v, mcuColumn * c.h + h, ss, se, ah, al);
+                        }
+                    }
+                }
+            }
+        }
+        // nextMarker() finds the end of the scan from here
+        pos = Math.min(pos, data.limit());
+    }
+    
+    // Skips the RSTn marker and resets the decoder state
+    private void restart(Component[] scan) throws IOException {
+        bits = 0;
+        bitCount = 0;
+        atMarker = false;
+        padding = 0;
+        eobRun = 0;
+        for(Component c : scan) {
+            c.pred = 0;
+        }
+        if(pos + 1 >= data.limit()) {
+            // truncated: the rest decodes from zeros, as libjpeg does
+            return;
+        }
+        while(pos + 2 < data.limit() && u8(pos) == 0xFF && u8(pos + 1) == 0xFF) {
+            pos++;
+        }
+        if(u8(pos) != 0xFF || u8(pos + 1) < 0xD0 || u8(pos + 1) > 0xD7) {
+            throw new IOException("Missing restart marker");
+        }
+        pos += 2;
+    }
+    
+    private void decodeBlock(Component c, int row, int column, int ss, int se, int ah, int al) throws IOException {
+        if(bitCount < padding) {
+            // out of data: the rest of the scan is left empty, which is mid
+            // gray in a sequential jpeg, as libjpeg does
+            if(!progressive) {
+                c.idct(c.block, row, column, 0);
+            }
+            return;
+        }
+        if(!progressive) {
+            decodeBaseline(c, row, column);
+        } else {
+            int offset = (row * c.blocksPerLine + column) * 64;
+            if(ss == 0) {
+                if(ah == 0) {
+                    int t = decodeHuffman(c.dc);
+                    c.pred += t == 0 ? 0 : receiveExtend(t);
+                    c.coefficients[offset] = (short)(c.pred << al);
+                } else if(readBit() != 0) {
+                    c.coefficients[offset] |= 1 << al;
+                }
+            } else if(ah == 0) {
+                decodeAcFirst(c.coefficients, offset, c.ac, ss, se, al);
+            } else {
+                decodeAcRefine(c.coefficients, offset, c.ac, ss, se, al);
+            }
+        }
+    }
+    
+    // Decodes, dequantizes and inverse transforms one block of a sequential scan
+    private void decodeBaseline(Component c, int row, int column) throws IOException {
+        int[] block = c.block;
+        int[] q = quant[c.tq];
+        if(q == null) {
+            throw new IOException("Missing quantization table");
+        }
+        int t = decodeHuffman(c.dc);
+        c.pred += t == 0 ? 0 : receiveExtend(t);
+        block[0] = c.pred * q[0];
+        
+        int last = 0;
+        for(int k = 1; k < 64; k++) {
+            int rs = decodeHuffman(c.ac);
+            int r = rs >> 4;
+            int s = rs & 15;
+            if(s == 0) {
+                if(r != 15) {
+                    break;
+                }
+                k += 15;
+                continue;
+            }
+            k += r;
+            int z = NATURAL[k];
+            if((z & 7) < n && z >> 3 < n) {
+                block[z] = receiveExtend(s) * q[k];
+                last = Math.max(last, z);
+            } else {
+                skipBits(s);
+            }
+        }
+        c.idct(block, row, column, last);
+    }
+    
+    private void decodeAcFirst(short[] coefficients, int offset, Huffman ac, int ss, int se, int al) throws IOException {
+        if(eobRun > 0) {
+            eobRun--;
+            return;
+        }
+        for(int k = ss; k <= se; k++) {
+            int rs = decodeHuffman(ac);
+            int r = rs >> 4;
+            int s = rs & 15;
+            if(s == 0) {
+                if(r < 15) {
+                    eobRun = (1 << r) - 1;
+                    if(r > 0) {
+                        eobRun += readBits(r);
+                    }
+                    break;
+                }
+                k += 15;
+                continue;
+            }
+            k += r;
+            coefficients[offset + NATURAL[k]] = (short)(receiveExtend(s) * (1 << al));
+        }
+    }
+    
+    // Successive approximation refinement of AC coefficients, as in libjpeg
+    private void decodeAcRefine(short[] coefficients, int offset, Huffman ac, int ss, int se, int al) throws IOException {
+        int p1 = 1 << al;
+        int m1 = -1 << al;
+        int k = ss;
+        if(eobRun == 0) {
+            for(; k <= se; k++) {
+                int rs = decodeHuffman(ac);
+                int r = rs >> 4;
+                int s = rs & 15;
+                if(s != 0) {
+                    s = readBit() != 0 ? p1 : m1;
+                } else if(r != 15) {
+                    eobRun = 1 << r;
+                    if(r > 0) {
+                        eobRun += readBits(r);
+                    }
+                    break;
+                }
+                do {
+                    int z = offset + NATURAL[k];
+                    if(coefficients[z] != 0) {
+                        refine(coefficients, z, p1, m1);
+                    } else if(--r < 0) {
+                        break;
+                    }
+                    k++;
+                } while(k <= se);
+                if(s != 0) {
+                    coefficients[offset + NATURAL[k]] = (short)s;
+                }
+            }
+        }
+        if(eobRun > 0) {
+            for(; k <= se; k++) {
+                int z = offset + NATURAL[k];
+                if(coefficients[z] != 0) {
+                    refine(coefficients, z, p1, m1);
+                }
+            }
+            eobRun--;
+        }
+    }
+    
+    private void refine(short[] coefficients, int z, int p1, int m1) throws IOException {
+        if(readBit() != 0 && (coefficients[z] & p1) == 0) {
+            coefficients[z] += coefficients[z] >= 0 ? p1 : m1;
+        }
+    }
+    
+    // Upsamples the reduced planes to the luma grid and converts to RGB
+    private BufferedImage toImage() {
+        int w = ceilDiv(width * n, 8);
+        int h = ceilDiv(height * n, 8);
+        if(components.length == 1) {
+            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+            byte[] out = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+            Component c = components[0];
+            for(int y = 0; y < h; y++) {
+                System.arraycopy(c.plane, y * c.stride, out, y * w, w);
+            }
+            return image;
+        }
+        
+        // JFIF is YCbCr, so is Adobe with transform 1, or with no marker
+        // unless the components are named R, G and B
+        boolean rgb = adobeTransform == 0
+                || (adobeTransform < 0 && components[0].id == 'R' && components[1].id == 'G' && components[2].id == 'B');
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] out = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        byte[] p0 = onOutputGrid(components[0], w, h);
+        byte[] p1 = onOutputGrid(components[1], w, h);
+        byte[] p2 = onOutputGrid(components[2], w, h);
+        int s0 = stride(components[0], w), s1 = stride(components[1], w), s2 = stride(components[2], w);
+        for(int y = 0, o = 0; y < h; y++) {
+            int r0 = y * s0, r1 = y * s1, r2 = y * s2;
+            if(rgb) {
+                for(int x = 0; x < w; x++, o += 3) {
+                    out[o] = p2[r2 + x];
+                    out[o + 1] = p1[r1 + x];
+                    out[o + 2] = p0[r0 + x];
+                }
+            } else {
+                for(int x = 0; x < w; x++, o += 3) {
+                    int luma = p0[r0 + x] & 0xFF;
+                    int cb = p1[r1 + x] & 0xFF;
+                    int cr = p2[r2 + x] & 0xFF;
+                    out[o] = clamp(luma + CB_BLUE[cb]);
+                    out[o + 1] = clamp(luma + ((CB_GREEN[cb] + CR_GREEN[cr]) >> 16));
+                    out[o + 2] = clamp(luma + CR_RED[cr]);
+                }
+            }
+        }
+        return image;
+    }
+    
+    private int stride(Component c, int w) {
+        return c.h == maxH && c.v == maxV ? c.stride : w;
+    }
+    
+    /**
+     * The component's samples at one per output pixel. Full resolution
+     * components already are. Half resolution ones, the usual 4:2:0 and
+     * 4:2:2 chroma, are interpolated as libjpeg's fancy upsampling does it:
+     * each sample becomes two at 3/4 of it and 1/4 of its neighbour, so
+     * colors stay centered on the pixels they came from. Other ratios are
+     * replicated.
+     */
+    private byte[] onOutputGrid(Component c, int w, int h) {
+        if(c.h == maxH && c.v == maxV) {
+            return c.plane;
+        }
+        boolean halfX = maxH == 2 * c.h;
+        boolean halfY = maxV == 2 * c.v;
+        // samples of the component inside the image
+        int cw = ceilDiv(w * c.h, maxH);
+        int ch = ceilDiv(h * c.v, maxV);
+        byte[] in = c.plane;
+        byte[] out = new byte[w * h];
+        // 4 x each column's vertical interpolation for this output row
+        int[] sums = new int[cw];
+        for(int y = 0; y < h; y++) {
+            int cy = y * c.v / maxV;
+            int row = cy * c.stride;
+            if(halfY) {
+                int near = ((y & 1) == 0 ? Math.max(cy - 1, 0) : Math.min(cy + 1, ch - 1)) * c.stride;
+                for(int i = 0; i < cw; i++) {
+                    sums[i] = 3 * (in[row + i] & 0xFF) + (in[near + i] & 0xFF);
+                }
+            } else {
+                for(int i = 0; i < cw; i++) {
+                    sums[i] = 4 * (in[row + i] & 0xFF);
+                }
+            }
+            int o = y * w;
+            if(halfX) {
+                for(int i = 0, x = 0; x < w; i++, x += 2) {
+                    out[o + x] = (byte)((3 * sums[i] + sums[Math.max(i - 1, 0)] + 8) >> 4);
+                    if(x + 1 < w) {
+                        out[o + x + 1] = (byte)((3 * sums[i] + sums[Math.min(i + 1, cw - 1)] + 7) >> 4);
+                    }
+                }
+            } else {
+                for(int x = 0; x < w; x++) {
+                    out[o + x] = (byte)((sums[x * c.h / maxH] + 2) >> 2);
+                }
+            }
+        }
+        return out;
+    }
+    
+    // level shifted and rounded. Anything that truncates wrongly below 0
+    // clamps to 0 anyway.
+    private static byte sample(float v) {
+        return clamp((int)(v + 128.5f));
+    }
+    
+    private static byte clamp(int v) {
+        return (byte)(v < 0 ? 0 : v > 255 ? 255 : v);
+    }
+    
+    // Entropy coded data
+    
+    // Tops up the bit buffer to at least 57 bits. Past a marker or the end
+    // of the data it is padded with zeros, which are counted so running
+    // into them can be noticed.
+    private void fill() {
+        while(bitCount <= 56) {
+            int b = 0;
+            if(!atMarker) {
+                if(pos >= data.limit()) {
+                    atMarker = true;
+                } else {
+                    b = u8(pos);
+                    if(b == 0xFF) {
+                        int next = pos + 1 < data.limit() ? u8(pos + 1) : 0xD9;
+                        if(next == 0) {
+                            pos += 2;
+                        } else {
+                            atMarker = true;
+                            b = 0;
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+            }
+            if(atMarker) {
+                padding += 8;
+            }
+            bits = bits << 8 | b;
+            bitCount += 8;
+        }
+    }
+    
+    private int readBits(int count) {
+        if(bitCount < count) {
+            fill();
+        }
+        bitCount -= count;
+        return (int)(bits >>> bitCount) & ((1 << count) - 1);
+    }
+    
+    private int readBit() {
+        return readBits(1);
+    }
+    
+    private void skipBits(int count) {
+        if(bitCount < count) {
+            fill();
+        }
+        bitCount -= count;
+    }
+    
+    // The s bit value of a coefficient, negative when its top bit is 0
+    private int receiveExtend(int s) {
+        int v = readBits(s);
+        return v < 1 << (s - 1) ? v - (1 << s) + 1 : v;
+    }
+    
+    private int decodeHuffman(Huffman table) throws IOException {
+        if(table == null) {
+            throw new IOException("Missing Huffman table");
+        }
+        if(bitCount < 16) {
+            fill();
+        }
+        int peek = (int)(bits >>> (bitCount - LOOKUP_BITS)) & ((1 << LOOKUP_BITS) - 1);
+        int entry = table.lookup[peek];
+        if(entry != 0) {
+            bitCount -= entry >> 8;
+            return entry & 0xFF;
+        }
+        for(int l = LOOKUP_BITS + 1; l <= 16; l++) {
+            int code = (int)(bits >>> (bitCount - l)) & ((1 << l) - 1);
+            if(code <= table.maxCode[l]) {
+                bitCount -= l;
+                return table.values[table.valueOffset[l] + code];
+            }
+        }
+        throw new IOException("Bad Huffman code");
+    }
+    
+    private int u8(int p) {
+        return data.get(p) & 0xFF;
+    }
+    
+    private int u16(int p) {
+        return u8(p) << 8 | u8(p + 1);
+    }
+    
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+    
+    // One Huffman table, canonical codes as in the JPEG spec, Annex C
+    private static final class Huffman {
+        // (length << 8 | value) for codes of up to LOOKUP_BITS bits,
+        // indexed by the next LOOKUP_BITS bits, 0 for longer codes
+        final int[] lookup = new int[1 << LOOKUP_BITS];
+        // largest code of each length, -1 when there are none
+        final int[] maxCode = new int[17];
+        // values[valueOffset[l] + code] is the value of code of length l
+        final int[] valueOffset = new int[17];
+        final int[] values;
+        
+        Huffman(int[] counts, int[] values) {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for(int l = 1; l <= 16; l++) {
+                valueOffset[l] = k - code;
+                for(int i = 0; i < counts[l]; i++, k++, code++) {
+                    if(l <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - l;
+                        for(int fillBits = 0; fillBits < 1 << shift; fillBits++) {
+                            lookup[code << shift | fillBits] = l << 8 | values[k];
+                        }
+                    }
+                }
+                maxCode[l] = counts[l] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+        }
+    }
+    
+    // One color component of the frame and its reduced samples
+    private final class Component {
+        final int id;
+        final int h;
+        final int v;
+        final int tq;
+        Huffman dc;
+        Huffman ac;
+        int pred;
+        // blocks in the MCU grid, which covers the image and a bit more
+        int blocksPerLine;
+        int blocksPerColumn;
+        // progressive only: every block's coefficients, zigzag undone
+        short[] coefficients;
+        // n x n samples per block
+        byte[] plane;
+        int stride;
+        // dequantized coefficients of the block being decoded
+        final int[] block = new int[64];
+        // the row pass of idct4
+        final float[] rows = new float[32];
+        
+        Component(int id, int h, int v, int tq) {
+            this.id = id;
+            this.h = h;
+            this.v = v;
+            this.tq = tq;
+        }
+        
+        void allocate() {
+            blocksPerLine = mcusPerLine * h;
+            blocksPerColumn = mcusPerColumn * v;
+            stride = blocksPerLine * n;
+            plane = new byte[stride * blocksPerColumn * n];
+            if(progressive) {
+                coefficients = new short[blocksPerLine * blocksPerColumn * 64];
+            }
+        }
+        
+        void idctAll() throws IOException {
+            int[] q = quant[tq];
+            if(q == null) {
+                throw new IOException("Missing quantization table");
+            }
+            for(int row = 0, offset = 0; row < blocksPerColumn; row++) {
+                for(int column = 0; column < blocksPerLine; column++, offset += 64) {
+                    int last = 0;
+                    for(int k = 0; k < 64; k++) {
+                        int z = NATURAL[k];
+                        if((z & 7) < n && z >> 3 < n) {
+                            block[z] = coefficients[offset + z] * q[k];
+                            if(block[z] != 0) {
+                                last = Math.max(last, z);
+                            }
+                        }
+                    }
+                    idct(block, row, column, last);
+                }
+            }
+        }
+        
+        /**
+         * Writes the n x n samples of a block from its dequantized top left
+         * n x n coefficients, which are cleared for the next block.
+         * 
+         * @param last highest natural index that may be non zero
+         */
+        void idct(int[] coefficients, int row, int column, int last) {
+            int p = row * n * stride + column * n;
+            if(last == 0) {
+                // flat block, and all of them at 1/8
+                byte dc = sample(coefficients[0] / 8f);
+                coefficients[0] = 0;
+                for(int y = 0; y < n; y++, p += stride) {
+                    for(int x = 0; x < n; x++) {
+                        plane[p + x] = dc;
+                    }
+                }
+            } else if(n == 2) {
+                idct2(coefficients, p);
+            } else {
+                idct4(coefficients, p);
+            }
+        }
+        
+        // 2 x 2 is sums and differences, each basis function being 1 / 8
+        private void idct2(int[] c, int p) {
+            int a = c[0], b = c[1], d = c[8], e = c[9];
+            plane[p] = sample((a + b + d + e) / 8f);
+            plane[p + 1] = sample((a - b + d - e) / 8f);
+            plane[p + stride] = sample((a + b - d - e) / 8f);
+            plane[p + stride + 1] = sample((a - b - d + e) / 8f);
+            c[0] = c[1] = c[8] = c[9] = 0;
+        }
+        
+        // 4 x 4 as rows then columns, each an even / odd butterfly
+        private void idct4(int[] c, int p) {
+            float[] t = rows;
+            for(int i = 0; i < 32; i += 8) {
+                float e0 = K * (c[i] + c[i + 2]);
+                float e1 = K * (c[i] - c[i + 2]);
+                float o0 = C1 * c[i + 1] + C3 * c[i + 3];
+                float o1 = C3 * c[i + 1] - C1 * c[i + 3];
+                t[i] = e0 + o0;
+                t[i + 1] = e1 + o1;
+                t[i + 2] = e1 - o1;
+                t[i + 3] = e0 - o0;
+                c[i] = c[i + 1] = c[i + 2] = c[i + 3] = 0;
+            }
+            for(int x = 0; x < 4; x++, p++) {
+                float e0 = K * (t[x] + t[x + 16]);
+                float e1 = K * (t[x] - t[x + 16]);
+                float o0 = C1 * t[x + 8] + C3 * t[x + 24];
+                float o1 = C3 * t[x + 8] - C1 * t[x + 24];
+                plane[p] = sample(e0 + o0);
+                plane[p + stride] = sample(e1 + o1);
+                plane[p + 2 * stride] = sample(e1 - o1);
+                plane[p + 3 * stride] = sample(e0 - o0);
+            }
+        }
+    }
+}
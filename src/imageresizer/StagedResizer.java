@@ -0,0 +1,392 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import imageresizer.BatchSummary.Stage;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resizes a batch as three stages on their own threads:
+ *  - readers map source files into memory and check the cache
+ *  - workers decode and scale
+ *  - writers encode and write the outputs
+ * 
+ * With one task per image a worker waiting on a slow disk (NFS) holds a
+ * CPU's worth of work, and while every worker is scaling the disk is idle.
+ * Here each stage has its own number of threads, so reads keep going while
+ * the CPUs are busy. The stages are joined by bounded queues, which caps
+ * the encoded sources and decoded images in memory at once.
+ * 
+ * Workers take a resize's estimated memory from the shared MemoryBudget
+ * before decoding, and writers give it back once the output is written, so
+ * decoded images waiting in the encode queue are counted too.
+ * 
+ * The queues record their average depth and how long threads waited on
+ * them. A full queue means the stage after it is slow, an empty one the
+ * stage before it. toString() reports them after a run, with the stage
+ * whose threads were idle the least as the bottleneck. A thread that runs
+ * out of work before the batch ends is idle for the rest of it.
+ * 
+ * @author gtanner
+ */
+public class StagedResizer extends BatchResizer {
+    
+    private static final Logger LOG = Logger.getLogger(StagedResizer.class.getName());
+    
+    // Marks the end of a queue, one per consuming thread
+    private static final Job END = new Job(null, null);
+    
+    private final ImageResizer resizer;
+    private final int readers;
+    private final int workers;
+    private final int writers;
+    
+    // Queues of the last run, for toString()
+    private volatile StageQueue decodeQueue;
+    private volatile StageQueue encodeQueue;
+    private volatile RunTimes runTimes;
+    
+    /**
+     * @param resizer does the work for each stage
+     * @param readers threads reading files
+     * @param workers threads decoding and scaling
+     * @param writers threads encoding and writing files
+     */
+    public StagedResizer(ImageResizer resizer, int readers, int workers, int writers) {
+        super(resizer, workers);
+        if(readers < 1 || writers < 1) {
+            throw new IllegalArgumentException("Each stage needs a thread: " + readers + " readers, " + writers + " writers");
+        }
+        this.resizer = resizer;
+        this.readers = readers;
+        this.workers = workers;
+        this.writers = writers;
+    }
+    
+    @Override
+    public BatchSummary run(List<Path> files, Function<Path, Path> output, RenditionSpec spec,
+            Consumer<Path> resized) throws IOException {
+        BatchSummary summary = new BatchSummary();
+        Queue<SizedPath> sources = new ConcurrentLinkedQueue<>(plan(files, spec));
+        // Enough to keep every thread of the next stage busy with one more waiting
+        StageQueue decode = new StageQueue(workers * 2);
+        StageQueue encode = new StageQueue(writers * 2);
+        decodeQueue = decode;
+        encodeQueue = encode;
+        RunTimes times = new RunTimes();
+        runTimes = times;
+        
+        AtomicInteger readersLeft = new AtomicInteger(readers);
+        AtomicInteger workersLeft = new AtomicInteger(workers);
+        CountDownLatch done = new CountDownLatch(writers);
+        
+        summary.start();
+        ExecutorService threads = Executors.newFixedThreadPool(readers + workers + writers);
+        try {
+            for(int i = 0; i < readers; i++) {
+                threads.execute(() -> {
+                    try {
+                        read(sources, output, spec, decode, summary, resized);
+                    } finally {
+                        times.readers.add(System.nanoTime() - times.start);
+                        // the last reader tells each worker there is no more
+                        if(readersLeft.decrementAndGet() == 0) {
+                            decode.end(workers);
+                        }
+                    }
+                });
+            }
+            for(int i = 0; i < workers; i++) {
+                threads.execute(() -> {
+                    try {
+                        scale(decode, encode, spec, summary);
+                    } finally {
+                        times.workers.add(System.nanoTime() - times.start);
+                        if(workersLeft.decrementAndGet() == 0) {
+                            encode.end(writers);
+                        }
+                    }
+                });
+            }
+            for(int i = 0; i < writers; i++) {
+                threads.execute(() -> {
+                    try {
+                        write(encode, spec, summary, resized);
+                    } finally {
+                        times.writers.add(System.nanoTime() - times.start);
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } catch(InterruptedException e) {
+            threads.shutdownNow();
+            throw new InterruptedIOException("Batch interrupted");
+        } finally {
+            threads.shutdown();
+            // After an interrupt, jobs left in the queues still hold memory
+            // and pooled images. A thread stopped while handing one on
+            // drops its own.
+            for(Job job : decode.drain()) {
+                drop(job, summary);
+            }
+            for(Job job : encode.drain()) {
+                drop(job, summary);
+            }
+            times.end = System.nanoTime();
+            summary.finish();
+        }
+        
+        return summary;
+    }
+    
+    private void read(Queue<SizedPath> sources, Function<Path, Path> output, RenditionSpec spec,
+            StageQueue decode, BatchSummary summary, Consumer<Path> resized) {
+        for(SizedPath sp; (sp = sources.poll()) != null; ) {
+            Job job = new Job(sp, output.apply(sp.path).toFile());
+            try {
+                if(copyIfSmall(sp, job.output.toPath(), spec, summary)) {
+                    finish(job, summary, resized);
+                    continue;
+                }
+                long start = System.nanoTime();
+                job.encoded = resizer.read(sp.path.toFile());
+                job.key = resizer.cacheKey(job.encoded, spec);
+                boolean hit = job.key != null && resizer.getCache().copyTo(job.key, job.output);
+                summary.addTime(Stage.IO, System.nanoTime() - start);
+                
+                if(hit) {
+                    finish(job, summary, resized);
+                } else {
+                    decode.put(job);
+                }
+            } catch(IOException | RuntimeException e) {
+                fail(job, e, summary);
+            } catch(InterruptedException e) {
+                drop(job, summary);
+                // so end() doesn't wait on a queue nobody takes from
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    private void scale(StageQueue decode, StageQueue encode, RenditionSpec spec, BatchSummary summary) {
+        try {
+            for(Job job; (job = decode.take()) != END; ) {
+                try {
+                    // held until the output is written
+                    MemoryBudget.shared().acquire(job.source.memory);
+                    job.admitted = job.source.memory;
+                    job.image = resizer.decodeAndScale(job.encoded, job.source.path.toFile(), spec, summary);
+                    job.encoded = null;
+                    encode.put(job);
+                } catch(IOException | RuntimeException e) {
+                    fail(job, e, summary);
+                } catch(InterruptedException e) {
+                    // shut down while waiting for memory or the encode queue
+                    drop(job, summary);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } catch(InterruptedException e) {
+            // shut down
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void write(StageQueue encode, RenditionSpec spec, BatchSummary summary, Consumer<Path> resized) {
+        try {
+            for(Job job; (job = encode.take()) != END; ) {
+                BufferedImage image = job.image;
+                job.image = null;
+                try {
+                    resizer.encodeAndWrite(image, job.output, spec, summary);
+                    if(job.key != null) {
+                        resizer.getCache().put(job.key, job.output);
+                    }
+                    release(job);
+                    finish(job, summary, resized);
+                } catch(IOException | RuntimeException e) {
+                    fail(job, e, summary);
+                }
+            }
+        } catch(InterruptedException e) {
+            // shut down
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static void finish(Job job, BatchSummary summary, Consumer<Path> resized) {
+        summary.addImage(job.source.size, job.output.length(), System.nanoTime() - job.start);
+        resized.accept(job.source.path);
+    }
+    
+    private static void release(Job job) {
+        MemoryBudget.shared().release(job.admitted);
+        job.admitted = 0;
+    }
+    
+    private static void fail(Job job, Exception e, BatchSummary summary) {
+        drop(job, summary);
+        LOG.log(Level.WARNING, "Could not resize " + job.source.path, e);
+    }
+    
+    // Gives back what the job holds and counts it as failed
+    private static void drop(Job job, BatchSummary summary) {
+        if(job == END) {
+            return;
+        }
+        if(job.image != null) {
+            ImagePool.shared().release(job.image);
+            job.image = null;
+        }
+        release(job);
+        summary.addFailure();
+    }
+    
+    /**
+     * @return the queue depths and waits of the last run, and which stage
+     *         held it up
+     */
+    @Override
+    public String toString() {
+        StageQueue decode = decodeQueue;
+        StageQueue encode = encodeQueue;
+        RunTimes times = runTimes;
+        if(decode == null) {
+            return "Pipeline: not run";
+        }
+        
+        // Time each thread of a stage spent waiting on its queues, and
+        // after it finished while the other stages were still going
+        double readersIdle = (decode.putWaitNanos.sum() + times.finishedEarly(times.readers, readers))
+                / 1e9 / readers;
+        double workersIdle = (decode.takeWaitNanos.sum() + encode.putWaitNanos.sum()
+                + times.finishedEarly(times.workers, workers)) / 1e9 / workers;
+        double writersIdle = (encode.takeWaitNanos.sum() + times.finishedEarly(times.writers, writers))
+                / 1e9 / writers;
+        String bottleneck = readersIdle <= workersIdle && readersIdle <= writersIdle ? "read"
+                : workersIdle <= writersIdle ? "decode/resample" : "encode/write";
+        
+        return String.format("Pipeline: %d readers, %d workers, %d writers%n"
+                + "  decode queue: average %.1f of %d, readers blocked %.2fs, workers waited %.2fs%n"
+                + "  encode queue: average %.1f of %d, workers blocked %.2fs, writers waited %.2fs%n"
+                + "  bottleneck: %s",
+                readers, workers, writers,
+                decode.averageDepth(), decode.capacity, decode.putWaitNanos.sum() / 1e9, decode.takeWaitNanos.sum() / 1e9,
+                encode.averageDepth(), encode.capacity, encode.putWaitNanos.sum() / 1e9, encode.takeWaitNanos.sum() / 1e9,
+                bottleneck);
+    }
+    
+    // One image on its way through the stages
+    private static final class Job {
+        final SizedPath source;
+        final File output;
+        final long start = System.nanoTime();
+        String key;
+        ByteBuffer encoded;
+        BufferedImage image;
+        // bytes taken from the MemoryBudget
+        long admitted;
+        
+        Job(SizedPath source, File output) {
+            this.source = source;
+            this.output = output;
+        }
+    }
+    
+    // When a run started and ended, and how long the threads of each stage
+    // ran from the start, added up
+    private static final class RunTimes {
+        final long start = System.nanoTime();
+        volatile long end;
+        final LongAdder readers = new LongAdder();
+        final LongAdder workers = new LongAdder();
+        final LongAdder writers = new LongAdder();
+        
+        // Time between each thread's exit and the end of the run, added up
+        long finishedEarly(LongAdder ran, int threads) {
+            long wall = (end != 0 ? end : System.nanoTime()) - start;
+            return Math.max(0, wall * threads - ran.sum());
+        }
+    }
+    
+    // Bounded queue between two stages that keeps track of its depth and
+    // how long the threads on each side waited
+    private static final class StageQueue {
+        final int capacity;
+        final BlockingQueue<Job> queue;
+        final LongAdder putWaitNanos = new LongAdder();
+        final LongAdder takeWaitNanos = new LongAdder();
+        final LongAdder depthSum = new LongAdder();
+        final LongAdder samples = new LongAdder();
+        
+        StageQueue(int capacity) {
+            this.capacity = capacity;
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+        
+        void put(Job job) throws InterruptedException {
+            // depth seen by the producer, before it adds
+            depthSum.add(queue.size());
+            samples.increment();
+            
+            long start = System.nanoTime();
+            queue.put(job);
+            putWaitNanos.add(System.nanoTime() - start);
+        }
+        
+        Job take() throws InterruptedException {
+            long start = System.nanoTime();
+            Job job = queue.take();
+            takeWaitNanos.add(System.nanoTime() - start);
+            return job;
+        }
+        
+        // Whatever is still queued, END markers included
+        List<Job> drain() {
+            List<Job> jobs = new ArrayList<>();
+            queue.drainTo(jobs);
+            return jobs;
+        }
+        
+        // No more jobs for any of the consumers
+        void end(int consumers) {
+            try {
+                for(int i = 0; i < consumers; i++) {
+                    queue.put(END);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        double averageDepth() {
+            long n = samples.sum();
+            return n > 0 ? (double)depthSum.sum() / n : 0;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Resizes images too big to hold in memory, a strip of rows at a time.
+ * 
+ * The source is read in horizontal strips with ImageReadParam.setSourceRegion
+ * into one reused strip image, and fed to the Resampler, which only keeps a
+ * kernel's height of filtered rows. When the writer supports
+ * prepareWriteEmpty/replacePixels (TIFF does) the output is written in
+ * strips too, so memory depends on the image width, not its area. Other
+ * formats (jpeg, png) can only be written whole, so the destination is kept
+ * in memory; when scaling down that is the small image.
+ * 
+ * When scaling down by 2 or more the strips are also read subsampled, see
+ * SubsampledReader. A region of the source can be given to crop and
+ * resize in the same pass.
+ * 
+ * Readers of sequential formats like jpeg decode from the top of the file
+ * for every region, so fewer, taller strips are faster. The strip height
+ * is picked from the byte budget given to the constructor.
+ * 
+ * @author gtanner
+ */
+public class StreamingResizer {
+    
+    // Bytes per pixel assumed when sizing strips
+    private static final int PIXEL_BYTES = 4;
+    
+    private final long stripBytes;
+    
+    /**
+     * @param stripBytes memory to use for each of the source and
+     *        destination strips
+     */
+    public StreamingResizer(long stripBytes) {
+        if(stripBytes <= 0) {
+            throw new IllegalArgumentException("stripBytes must be positive: " + stripBytes);
+        }
+        this.stripBytes = stripBytes;
+    }
+    
+    /**
+     * Resizes source into output.
+     * 
+     * @param source
+     * @param output
+     * @param format for ImageIO, for example "jpg" or "tiff"
+     * @param width of the output
+     * @param height of the output
+     * @param filter
+     */
+    public void resize(File source, File output, String format, int width, int height, ResampleFilter filter) throws IOException {
+        resize(source, null, output, format, width, height, filter);
+    }
+    
+    /**
+     * Resizes a region of source into output, reading only the region.
+     * 
+     * @param source
+     * @param region source pixels to resize, null for the whole image
+     * @param output
+     * @param format for ImageIO, for example "jpg" or "tiff"
+     * @param width of the output
+     * @param height of the output
+     * @param filter
+     */
+    public void resize(File source, Rectangle region, File output, String format, int width, int height,
+            ResampleFilter filter) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if(!writers.hasNext()) {
+            throw new IOException("No writer for " + format);
+        }
+        ImageWriter writer = writers.next();
+        
+        try(ImageInputStream iis = MappedImageInputStream.open(source)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if(!readers.hasNext()) {
+                throw new IOException("No image reader for " + source);
+            }
+            ImageReader reader = readers.next();
+            
+            output.delete();
+            try(ImageOutputStream ios = ImageIO.createImageOutputStream(output)) {
+                reader.setInput(iis, true, true);
+                Rectangle bounds = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+                Rectangle area = region == null ? bounds : bounds.intersection(region);
+                if(area.isEmpty()) {
+                    throw new IOException("Region " + region + " is outside the image");
+                }
+                writer.setOutput(ios);
+                resize(reader, area, writer, format, width, height, filter);
+            } finally {
+                reader.dispose();
+                writer.dispose();
+            }
+        }
+    }
+    
+    private void resize(ImageReader reader, Rectangle area, ImageWriter writer, String format, int width, int height,
+            ResampleFilter filter) throws IOException {
+        int srcWidth = area.width;
+        int srcHeight = area.height;
+        int factor = SubsampledReader.subsampling(srcWidth, srcHeight, width, height);
+        // size of the source after subsampling
+        int subWidth = (srcWidth + factor - 1) / factor;
+        int subHeight = (srcHeight + factor - 1) / factor;
+        
+        ImageTypeSpecifier srcType = reader.getImageTypes(0).next();
+        boolean alpha = srcType.getColorModel().hasAlpha() && !isOpaqueFormat(format);
+        int dstType = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_3BYTE_BGR;
+        
+        // source strips, in subsampled rows
+        int srcRows = rows(subWidth, subHeight);
+        BufferedImage srcStrip = srcType.createBufferedImage(subWidth, srcRows);
+        StripSource strips = new StripSource(reader, srcStrip, factor, area);
+        strips.load(0);
+        
+        boolean streamOut = writer.canWriteEmpty();
+        int dstRows = streamOut ? rows(width, height) : height;
+        BufferedImage dstStrip = new BufferedImage(width, dstRows, dstType);
+        
+        ImageWriteParam writeParam = writer.getDefaultWriteParam();
+        if(streamOut) {
+            writer.prepareWriteEmpty(null, ImageTypeSpecifier.createFromRenderedImage(dstStrip),
+                    width, height, null, null, writeParam);
+        }
+        
+        Resampler.Pass pass = new Resampler.Pass(strips.layout, subHeight, PixelLayout.of(dstStrip), height, filter) {
+            @Override
+            void loadSource(int sy) {
+                try {
+                    strips.load(sy);
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                src = strips.layout;
+                srcY0 = sy;
+            }
+            
+            @Override
+            void rowWritten(int y) {
+                if(!streamOut) {
+                    return;
+                }
+                int rows = y + 1 - dstY0;
+                if(rows == dstStrip.getHeight() || y == height - 1) {
+                    try {
+                        replacePixels(writer, dstStrip, dstY0, rows);
+                    } catch(IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    dstY0 = y + 1;
+                }
+            }
+        };
+        
+        try {
+            pass.rows(0, height);
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+        
+        if(streamOut) {
+            writer.endWriteEmpty();
+        } else {
+            writer.write(null, new IIOImage(dstStrip, null, null), writeParam);
+        }
+    }
+    
+    // Strip height that fits the byte budget
+    private int rows(int width, int height) {
+        long rows = stripBytes / ((long)width * PIXEL_BYTES);
+        return (int)Math.max(1, Math.min(height, rows));
+    }
+    
+    private static void replacePixels(ImageWriter writer, BufferedImage strip, int y, int rows) throws IOException {
+        Rectangle region = new Rectangle(0, y, strip.getWidth(), rows);
+        writer.prepareReplacePixels(0, region);
+        
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setSourceRegion(new Rectangle(0, 0, strip.getWidth(), rows));
+        param.setDestinationOffset(new Point(0, y));
+        writer.replacePixels(strip, param);
+        writer.endReplacePixels();
+    }
+    
+    private static boolean isOpaqueFormat(String format) {
+        String f = format.toLowerCase();
+        return f.equals("jpg") || f.equals("jpeg") || f.equals("bmp");
+    }
+    
+    /**
+     * Reads subsampled strips of the source into one reused image.
+     */
+    private static final class StripSource {
+        final ImageReader reader;
+        final BufferedImage strip;
+        final int factor;
+        // the part of the image being resized
+        final Rectangle area;
+        final ImageReadParam param;
+        PixelLayout layout;
+        
+        StripSource(ImageReader reader, BufferedImage strip, int factor, Rectangle area) {
+            this.reader = reader;
+            this.strip = strip;
+            this.factor = factor;
+            this.area = area;
+            param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(factor, factor, 0, 0);
+            param.setDestination(strip);
+        }
+        
+        // Reads the strip starting at subsampled row sy of the area
+        void load(int sy) throws IOException {
+            int y = sy * factor;
+            int rows = Math.min(strip.getHeight() * factor, area.height - y);
+            param.setSourceRegion(new Rectangle(area.x, area.y + y, area.width, rows));
+            reader.read(0, param);
+            
+            layout = PixelLayout.of(strip);
+            if(layout == null) {
+                // indexed or 16 bit, convert the strip
+                layout = PixelLayout.of(Resampler.toSupported(strip));
+            }
+        }
+    }
+}
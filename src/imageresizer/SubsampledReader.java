@@ -0,0 +1,243 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads images at reduced resolution when the size they will be scaled to
+ * is already known.
+ * 
+ * ImageIO.read() always decodes the full raster. A 48 MP photo is about
+ * 190MB as int pixels, only to be thrown away when it is scaled to 800 wide.
+ * Here the reader is asked to keep only every n-th pixel and row, where n is
+ * the largest power of two that still leaves at least the target size, so
+ * the decoded image is n*n times smaller. The caller then does the final
+ * scaling pass from that smaller image.
+ * 
+ * Whole jpegs are decoded by ScaledJpegDecoder instead, straight from the
+ * DCT coefficients at 1/n of the size. That skips most of the decoding
+ * work rather than throwing its result away, and each pixel is the average
+ * of its n x n block instead of one pixel out of it, so there is no
+ * aliasing. Jpegs it doesn't handle, regions and other formats go through
+ * ImageIO.
+ * 
+ * Whole image reads also look at the EXIF data (see ExifMetadata). Sizes
+ * are upright sizes, and the image comes back as stored with the
+ * orientation that turns it upright, for the resampler to apply. When the
+ * camera's embedded thumbnail is at least the size the image is going to
+ * and the same shape, it is decoded instead and the main image is never
+ * touched.
+ * 
+ * @author gtanner
+ */
+public class SubsampledReader {
+    
+    private static final Logger LOG = Logger.getLogger(SubsampledReader.class.getName());
+    
+    // -Dimageresizer.scaledJpeg=false reads jpegs through ImageIO only
+    private static final boolean SCALED_JPEG = !"false".equals(System.getProperty("imageresizer.scaledJpeg"));
+    
+    // -Dimageresizer.exifThumbnail=false always decodes the main image
+    private static final boolean EXIF_THUMBNAIL = !"false".equals(System.getProperty("imageresizer.exifThumbnail"));
+    
+    /**
+     * Reads an image at a reduced size that still covers maxWidth x maxHeight
+     * after turning it upright and scaling with the aspect ratio preserved.
+     * 
+     * @param file
+     * @param maxWidth
+     * @param maxHeight
+     * @return the subsampled image, or null if no reader handles the file
+     */
+    public static DecodedImage readToFit(File file, int maxWidth, int maxHeight) throws IOException {
+        try(ImageInputStream iis = MappedImageInputStream.open(file)) {
+            return read(iis, RenditionSpec.fit("fit", maxWidth, maxHeight), new Dimension());
+        }
+    }
+    
+    /**
+     * Reads a region of an image at a reduced size that still covers the
+     * target size. The region and the result are as stored, EXIF
+     * orientation isn't applied.
+     * 
+     * @param file
+     * @param region source pixels to read, null for the whole image
+     * @param targetWidth width the region will be scaled to
+     * @param targetHeight height the region will be scaled to
+     * @return the subsampled region, or null if no reader handles the file
+     */
+    public static BufferedImage read(File file, Rectangle region, int targetWidth, int targetHeight) throws IOException {
+        try(ImageInputStream iis = MappedImageInputStream.open(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if(!readers.hasNext()) {
+                return null;
+            }
+            
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                
+                Rectangle source = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+                if(region != null) {
+                    source = source.intersection(region);
+                    if(source.isEmpty()) {
+                        throw new IOException("Region " + region + " is outside the image");
+                    }
+                }
+                return read(reader, 0, source, targetWidth, targetHeight);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
+    /**
+     * Reads an image at a reduced size that still covers a rendition of it.
+     * 
+     * @param iis the encoded image
+     * @param spec
+     * @param target set to the upright size of the rendition, which depends
+     *        on the size of the source
+     * @return the subsampled image, or null if no reader handles the stream
+     */
+    public static DecodedImage read(ImageInputStream iis, RenditionSpec spec, Dimension target) throws IOException {
+        long start = iis.getStreamPosition();
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if(!readers.hasNext()) {
+            return null;
+        }
+        
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, true);
+            
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            ExifMetadata exif = ExifMetadata.read(reader);
+            Orientation orientation = exif.getOrientation();
+            Dimension upright = orientation.turn(width, height);
+            target.setSize(spec.targetSize(upright.width, upright.height));
+            Dimension stored = orientation.turn(target.width, target.height);
+            
+            if(EXIF_THUMBNAIL && exif.thumbnailCovers(width, height, stored.width, stored.height)) {
+                BufferedImage thumbnail = readThumbnail(exif);
+                if(thumbnail != null) {
+                    return new DecodedImage(thumbnail, orientation, true);
+                }
+            }
+            
+            BufferedImage image = read(reader, start, new Rectangle(0, 0, width, height), stored.width, stored.height);
+            return image == null ? null : new DecodedImage(image, orientation, false);
+        } finally {
+            reader.dispose();
+        }
+    }
+    
+    // Null if it fails, so the main image is decoded instead
+    private static BufferedImage readThumbnail(ExifMetadata exif) {
+        try {
+            return exif.readThumbnail();
+        } catch(IOException e) {
+            LOG.log(Level.FINE, "EXIF thumbnail decode failed, using the main image", e);
+            return null;
+        }
+    }
+    
+    private static BufferedImage read(ImageReader reader, long start, Rectangle source, int width, int height) throws IOException {
+        int factor = subsampling(source.width, source.height, width, height);
+        
+        if(factor > 1 && source.x == 0 && source.y == 0 && "jpeg".equalsIgnoreCase(reader.getFormatName())
+                && source.width == reader.getWidth(0) && source.height == reader.getHeight(0)) {
+            BufferedImage scaled = readScaledJpeg((ImageInputStream)reader.getInput(), start, factor);
+            if(scaled != null) {
+                return scaled;
+            }
+        }
+        
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(source);
+        param.setSourceSubsampling(factor, factor, 0, 0);
+        return reader.read(0, param);
+    }
+    
+    // Null if the jpeg uses something ScaledJpegDecoder doesn't handle, or
+    // it fails, so ImageIO can have a go
+    private static BufferedImage readScaledJpeg(ImageInputStream iis, long start, int factor) {
+        if(!SCALED_JPEG) {
+            return null;
+        }
+        try {
+            return ScaledJpegDecoder.read(iis, start, factor);
+        } catch(IOException e) {
+            LOG.log(Level.FINE, "Scaled jpeg decode failed, using ImageIO", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Largest power of two the source can be divided by and still be at
+     * least as big as the target in both directions.
+     * 
+     * @param srcWidth
+     * @param srcHeight
+     * @param targetWidth
+     * @param targetHeight
+     * @return 1, 2, 4, 8...
+     */
+    public static int subsampling(int srcWidth, int srcHeight, int targetWidth, int targetHeight) {
+        int factor = 1;
+        // a subsampled side has ceil(side / factor) pixels, which is never
+        // less than 1, so stop before a factor bigger than the image or a
+        // 1x1 target would double it forever
+        int limit = Math.min(srcWidth, srcHeight);
+        while(factor * 2 <= limit
+                && (srcWidth + factor * 2 - 1) / (factor * 2) >= targetWidth
+                && (srcHeight + factor * 2 - 1) / (factor * 2) >= targetHeight) {
+            factor *= 2;
+        }
+        return factor;
+    }
+    
+    /**
+     * Size of an image scaled to fit inside a box, preserving the aspect
+     * ratio. Images are never scaled up.
+     * 
+     * @param width
+     * @param height
+     * @param maxWidth
+     * @param maxHeight
+     * @return the new size
+     */
+    public static Dimension fitInside(int width, int height, int maxWidth, int maxHeight) {
+        int new_width = width;
+        int new_height = height;
+        
+        // first check if we need to scale width
+        if (width > maxWidth) {
+            new_width = maxWidth;
+            new_height = (int)((long)new_width * height / width);
+        }
+        
+        // then check if we need to scale even with the new height
+        if (new_height > maxHeight) {
+            new_height = maxHeight;
+            new_width = (int)((long)new_height * width / height);
+        }
+        return new Dimension(Math.max(1, new_width), Math.max(1, new_height));
+    }
+}
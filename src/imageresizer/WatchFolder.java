@@ -0,0 +1,258 @@
+/*
+ * U.S. Fish and Wildlife Service
+ */
+package imageresizer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resizes images as they are copied into a folder, without a user.
+ * 
+ * Events from a WatchService are collected per file. A file is only
+ * resized once its size and modified time have stopped changing for the
+ * quiet period, so a camera still syncing a file isn't read half written,
+ * and the many modify events of one copy turn into one resize. Files that
+ * settle at the same time are queued together, largest first.
+ * 
+ * The queue to the resize workers is bounded. When the workers fall behind
+ * the watcher blocks on it instead of piling up work; if the WatchService
+ * overflows meanwhile, the folder is scanned once to pick up what was missed.
+ * Each worker takes its resize's estimated memory from the shared
+ * MemoryBudget first, so a burst of large camera files waits for memory
+ * instead of decoding them all at once.
+ * 
+ * @author gtanner
+ */
+public class WatchFolder implements Closeable {
+    
+    private static final Logger LOG = Logger.getLogger(WatchFolder.class.getName());
+    
+    private final ImageResizer resizer;
+    private final Path directory;
+    private final Path outputDir;
+    private final int maxWidth;
+    private final long quietMillis;
+    
+    private final WatchService watchService;
+    private final BlockingQueue<Path> queue;
+    private final ExecutorService workers;
+    private final Thread watcher;
+    private volatile boolean running = true;
+    
+    // files with recent events, waiting to stop changing
+    private final Map<Path, Pending> pending = new HashMap<>();
+    
+    /**
+     * Starts watching. Files already in the folder are not resized, use
+     * ImageResizer.resizeAll for those.
+     * 
+     * @param resizer does the resizing, its concurrency is the number of workers
+     * @param directory folder to watch
+     * @param maxWidth
+     * @param quietMillis how long a file must stay unchanged before it is read
+     * @param queueSize files waiting for a worker before the watcher blocks
+     */
+    public WatchFolder(ImageResizer resizer, Path directory, int maxWidth, long quietMillis, int queueSize) throws IOException {
+        this.resizer = resizer;
+        this.directory = directory;
+        this.outputDir = directory.resolve(ImageResizer.OUTPUT_FOLDER);
+        this.maxWidth = maxWidth;
+        this.quietMillis = quietMillis;
+        
+        Files.createDirectories(outputDir);
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        
+        queue = new ArrayBlockingQueue<>(queueSize);
+        workers = Executors.newFixedThreadPool(resizer.getConcurrency());
+        for(int i = 0; i < resizer.getConcurrency(); i++) {
+            workers.execute(this::work);
+        }
+        
+        watcher = new Thread(this::watch, "watch " + directory);
+        watcher.start();
+    }
+    
+    /**
+     * Watches a folder until the process is stopped.
+     * 
+     * @param args folder, max width and optionally the quiet period in ms
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.out.println("Usage: WatchFolder <folder> <maxWidth> [quietMillis]");
+            return;
+        }
+        long quiet = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        WatchFolder watch = new WatchFolder(new ImageResizer(), Paths.get(args[0]), Integer.parseInt(args[1]), quiet, 256);
+        Runtime.getRuntime().addShutdownHook(new Thread(watch::close));
+        ResizeMetrics.shared().dumpEvery(1, TimeUnit.MINUTES, System.out);
+        System.out.printf("Watching %s%n", args[0]);
+    }
+    
+    /**
+     * @return files waiting for a worker
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+    
+    @Override
+    public void close() {
+        running = false;
+        try {
+            watchService.close();
+        } catch(IOException e) {
+            LOG.log(Level.WARNING, null, e);
+        }
+        watcher.interrupt();
+        workers.shutdownNow();
+    }
+    
+    private void watch() {
+        try {
+            while(running) {
+                WatchKey key = watchService.poll(Math.max(1, quietMillis / 2), TimeUnit.MILLISECONDS);
+                if(key != null) {
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan();
+                        } else {
+                            touch(directory.resolve((Path)event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                enqueueSettled();
+            }
+        } catch(InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+    
+    // Events were lost, so look at everything once
+    private void rescan() {
+        try {
+            for(Path p : ImageResizer.listImages(directory)) {
+                Path output = outputDir.resolve(ImageResizer.outputName(p, resizer.getFormat()));
+                if(!Files.exists(output) || Files.getLastModifiedTime(output).compareTo(Files.getLastModifiedTime(p)) < 0) {
+                    touch(p);
+                }
+            }
+        } catch(IOException e) {
+            LOG.log(Level.WARNING, "Could not scan " + directory, e);
+        }
+    }
+    
+    private void touch(Path path) {
+        if(ImageResizer.isImageFile(path) && !pending.containsKey(path)) {
+            pending.put(path, new Pending(path));
+        }
+    }
+    
+    // Moves files that stopped changing to the work queue
+    private void enqueueSettled() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<Pending> settled = new ArrayList<>();
+        
+        for(Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Pending> e = it.next();
+            Pending p = e.getValue();
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(p.path, BasicFileAttributes.class);
+                if(!attributes.isRegularFile()) {
+                    it.remove();
+                } else if(p.changed(attributes, now)) {
+                    // still being written
+                } else if(now - p.since >= quietMillis) {
+                    settled.add(p);
+                    it.remove();
+                }
+            } catch(IOException gone) {
+                // deleted or renamed before it settled
+                it.remove();
+            }
+        }
+        
+        Collections.sort(settled, (a, b) -> Long.compare(b.size, a.size));
+        for(Pending p : settled) {
+            // blocks while the workers are behind
+            queue.put(p.path);
+        }
+    }
+    
+    private void work() {
+        RenditionSpec spec = resizer.widthSpec(maxWidth);
+        MemoryBudget budget = MemoryBudget.shared();
+        try {
+            while(running) {
+                Path source = queue.take();
+                File output = outputDir.resolve(ImageResizer.outputName(source, resizer.getFormat())).toFile();
+                try {
+                    // headers only, for the memory estimate
+                    long peak = resizer.peakBytes(ImageProbe.probe(source.toFile()), spec);
+                    budget.acquire(peak);
+                    try {
+                        resizer.resizeImage(source.toFile(), output, spec, null);
+                    } finally {
+                        budget.release(peak);
+                    }
+                    LOG.log(Level.INFO, "Resized {0}", source);
+                } catch(IOException | RuntimeException e) {
+                    LOG.log(Level.WARNING, "Could not resize " + source, e);
+                }
+            }
+        } catch(InterruptedException e) {
+            // closed
+        }
+    }
+    
+    private static final class Pending {
+        final Path path;
+        long size = -1;
+        long modified = -1;
+        // when size and time were last seen to change
+        long since = System.currentTimeMillis();
+        
+        Pending(Path path) {
+            this.path = path;
+        }
+        
+        boolean changed(BasicFileAttributes attributes, long now) {
+            long newSize = attributes.size();
+            long newModified = attributes.lastModifiedTime().toMillis();
+            if(newSize != size || newModified != modified) {
+                size = newSize;
+                modified = newModified;
+                since = now;
+                return true;
+            }
+            return false;
+        }
+    }
+}
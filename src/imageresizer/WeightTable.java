@@ -0,0 +1,98 @@
+/*
+* Copyright Glen Tanner. All rights reserved.
+* 
+* SPDX-License_Identifier: LGPL-3.0
+ */
+package imageresizer;
+
+/**
+ * Precomputed filter weights for scaling one dimension.
+ * 
+ * Output pixel i is the weighted sum of the source pixels
+ * start[i] .. start[i] + taps - 1, with weights
+ * weights[i * taps] .. weights[i * taps + taps - 1].
+ * Every output pixel has the same number of taps so the inner loops have
+ * a fixed trip count; pixels near the edges get zero weights for the
+ * unused taps.
+ * 
+ * Weights are fixed point with BITS fraction bits, and the weights of each
+ * pixel add up to exactly ONE, so a flat area stays exactly flat.
+ * 
+ * @author gtanner
+ */
+final class WeightTable {
+    
+    static final int BITS = 14;
+    static final int ONE = 1 << BITS;
+    
+    final int srcLength;
+    final int dstLength;
+    final int taps;
+    final int[] start;
+    final int[] weights;
+    
+    WeightTable(int srcLength, int dstLength, ResampleFilter filter) {
+        this(srcLength, srcLength, dstLength, filter);
+    }
+    
+    /**
+     * @param srcLength source pixels there are
+     * @param srcExtent source pixels the destination spans, which is less
+     *        than srcLength when the last pixel only partly counts, as in
+     *        an image BoxReducer shortened a block of
+     * @param dstLength
+     * @param filter
+     */
+    WeightTable(int srcLength, double srcExtent, int dstLength, ResampleFilter filter) {
+        if(srcLength < 1 || dstLength < 1 || !(srcExtent > 0)) {
+            throw new IllegalArgumentException("Bad size " + srcLength + " -> " + dstLength);
+        }
+        this.srcLength = srcLength;
+        this.dstLength = dstLength;
+        
+        double scale = dstLength / srcExtent;
+        // Stretch the kernel when scaling down so it covers every source pixel
+        double stretch = scale < 1 ? 1 / scale : 1;
+        double support = filter.getRadius() * stretch;
+        
+        taps = Math.min(srcLength, (int)Math.ceil(support * 2) + 1);
+        start = new int[dstLength];
+        weights = new int[dstLength * taps];
+        
+        double[] w = new double[taps];
+        for(int i = 0; i < dstLength; i++) {
+            // center of the output pixel in source coordinates
+            double center = (i + 0.5) / scale - 0.5;
+            int left = Math.max(0, (int)Math.ceil(center - support));
+            int right = Math.min(srcLength - 1, (int)Math.floor(center + support));
+            
+            // keep the window inside the source
+            int first = Math.min(left, srcLength - taps);
+            start[i] = first;
+            
+            double sum = 0;
+            for(int k = 0; k < taps; k++) {
+                int j = first + k;
+                w[k] = j < left || j > right ? 0 : filter.weight((j - center) / stretch);
+                sum += w[k];
+            }
+            if(sum == 0) {
+                // kernel fell between pixels, take the nearest one
+                int nearest = Math.min(srcLength - 1, Math.max(0, (int)Math.round(center)));
+                w[nearest - first] = sum = 1;
+            }
+            // round to fixed point and put the rounding error on the biggest tap
+            int total = 0;
+            int biggest = 0;
+            for(int k = 0; k < taps; k++) {
+                int fixed = (int)Math.round(w[k] / sum * ONE);
+                weights[i * taps + k] = fixed;
+                total += fixed;
+                if(w[k] > w[biggest]) {
+                    biggest = k;
+                }
+            }
+            weights[i * taps + biggest] += ONE - total;
+        }
+    }
+}